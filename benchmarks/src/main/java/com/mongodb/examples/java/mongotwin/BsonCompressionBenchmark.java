@@ -0,0 +1,60 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Compressing and decompressing a fully populated twin as BSON, with each of BlobStrategy's codecs
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BsonCompressionBenchmark {
+
+    @Param({"zlib", "snappy", "zlib-dict"})
+    public String codecName;
+
+    BlobCodec codec;
+    byte[] twinBytes;
+    byte[] compressedBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = switch (codecName) {
+            case "snappy" -> new BlobCodec.SnappyCodec();
+            case "zlib-dict" -> new BlobCodec.Zlib(BlobDictionaries.train(60));
+            default -> new BlobCodec.Zlib(null);
+        };
+        MessageGenerator generator = new MessageGenerator(1000, 40, 60);
+        Map<String, Object> full = generator.getMessage(true, 42);
+        RawBsonDocument bson = TwinCodec.toRawBson(full);
+        twinBytes = Arrays.copyOf(bson.getByteBuffer().array(), bson.getByteBuffer().remaining());
+        compressedBytes = codec.compress(twinBytes, 0, twinBytes.length);
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        return codec.compress(twinBytes, 0, twinBytes.length);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return codec.decompress(compressedBytes, 0, compressedBytes.length);
+    }
+}
@@ -0,0 +1,105 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/* Flat against nested attribute layouts as the number of attributes grows.
+
+lookupChangedAttributes finds each attribute a message changes in the stored twin and reads its tsCC,
+walking the BSON a level at a time the way the server has to when it evaluates $e.X.tsCC - in a flat
+layout that is a scan of a sub document with every attribute in it. The other two are the client
+side costs of a layout, building the MERGE update and encoding a twin for ReadReplace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayoutBenchmark {
+
+    static final int MESSAGES = 1024;
+    static final int DEVICE_ID = 42;
+
+    @Param({"flat", "prefix", "hash"})
+    String layout;
+
+    @Param({"60", "500", "2000", "5000"})
+    int attributes;
+
+    AttributeLayout attributeLayout;
+    UpdatePipelineBuilder builder;
+    Document twin;
+    RawBsonDocument stored;
+    List<Map<String, Object>> messages = new ArrayList<>();
+    // For each message, the path to each attribute it changes
+    List<String[][]> changedPaths = new ArrayList<>();
+    int next = 0;
+
+    @Setup
+    public void setup() {
+        attributeLayout = AttributeLayout.of(layout, 16, attributes);
+        builder = new UpdatePipelineBuilder(UpdatePipelineBuilder.Shape.MERGE, attributeLayout, null);
+        MessageGenerator generator = new MessageGenerator(1000, 40, attributes);
+        Map<String, Object> full = generator.getMessage(true, DEVICE_ID);
+        full.remove("isNew");
+        twin = ReadModifyWriteStrategy.mergeMessage(null, full);
+        stored = TwinCodec.toRawBson(ReadReplaceStrategy.nestTwin(attributeLayout, twin));
+
+        for (int i = 0; i < MESSAGES; i++) {
+            Map<String, Object> message = generator.getMessage(false, DEVICE_ID);
+            message.remove("isNew");
+            messages.add(message);
+            List<?> changed = (List<?>) message.get("e");
+            String[][] paths = new String[changed.size()][];
+            for (int f = 0; f < paths.length; f++) {
+                String nodeId = (String) ((Map<?, ?>) changed.get(f)).get("nodeId");
+                String[] branches = attributeLayout.branches(nodeId);
+                paths[f] = new String[branches.length + 1];
+                System.arraycopy(branches, 0, paths[f], 0, branches.length);
+                paths[f][branches.length] = nodeId;
+            }
+            changedPaths.add(paths);
+        }
+    }
+
+    @Benchmark
+    public long lookupChangedAttributes() {
+        long sum = 0;
+        for (String[] path : changedPaths.get(next++ & (MESSAGES - 1))) {
+            BsonDocument level = stored.getDocument("e");
+            for (String name : path) {
+                level = level.getDocument(name);
+            }
+            sum += level.getInt64("tsCC").getValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public RawBsonDocument buildMergeStage() {
+        return builder.buildSetStage(messages.get(next++ & (MESSAGES - 1)));
+    }
+
+    @Benchmark
+    public RawBsonDocument encodeTwin() {
+        return TwinCodec.toRawBson(ReadReplaceStrategy.nestTwin(attributeLayout, twin));
+    }
+}
@@ -0,0 +1,108 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/* The client side of a read-modify-write update against a twin already in memory - no database.
+
+For ReadReplaceStrategy that is merging the message into the twin and encoding the replacement.
+mergeMessage replaces attributes in the twin's "e" map in place, so each call merges into a fresh copy
+of the twin, as it would into the twin just read from the database - otherwise after one pass of the
+messages nothing is newer and all we would measure is the rejection path. The copy is a 60 entry
+map and is timed too.
+For BlobStrategy it is also decompressing the stored blob first and compressing the result. The
+strategies are created against a client that never connects, nothing is ever sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+
+    static final int MESSAGES = 1024;
+    static final int DEVICE_ID = 42;
+
+    MongoClient mongoClient;
+    ReadReplaceStrategy readReplace;
+    BlobStrategy blob;
+    Document existingTwin;
+    Document storedBlob;
+    List<Map<String, Object>> messages = new ArrayList<>();
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mongoClient = MongoClients.create("mongodb://localhost:27017");
+        CommandLineArgs args = CommandLineArgs.parse(new String[]{"--inflight", "0"});
+        readReplace = new ReadReplaceStrategy(mongoClient, args);
+        blob = new BlobStrategy(mongoClient, args);
+
+        MessageGenerator generator = new MessageGenerator(1000, 40, 60);
+        Map<String, Object> full = generator.getMessage(true, DEVICE_ID);
+        full.remove("isNew");
+        existingTwin = readReplace.mergeMessage(null, full);
+        storedBlob = ((RawBsonDocument) blob.encodeTwin(existingTwin)).decode(new DocumentCodec());
+
+        for (int i = 0; i < MESSAGES; i++) {
+            Map<String, Object> message = generator.getMessage(false, DEVICE_ID);
+            message.remove("isNew");
+            messages.add(message);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mongoClient.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Document freshTwin() {
+        Document twin = new Document(existingTwin);
+        twin.put("e", new LinkedHashMap<>((Map<String, Object>) existingTwin.get("e")));
+        return twin;
+    }
+
+    private Map<String, Object> nextMessage() {
+        return messages.get(next++ & (MESSAGES - 1));
+    }
+
+    @Benchmark
+    public Document readReplaceMerge() {
+        return readReplace.mergeMessage(freshTwin(), nextMessage());
+    }
+
+    @Benchmark
+    public BsonDocument readReplaceMergeAndEncode() {
+        return readReplace.encodeTwin(readReplace.mergeMessage(freshTwin(), nextMessage()));
+    }
+
+    @Benchmark
+    public BsonDocument blobDecodeMergeAndEncode() {
+        Document twin = blob.decodeTwin(storedBlob);
+        return blob.encodeTwin(blob.mergeMessage(twin, nextMessage()));
+    }
+}
@@ -0,0 +1,55 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Cost of generating a partial update message and a fully populated one as used with -p, -p keys=zipf:0.99
+// to see what picking devices from a skewed distribution adds
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageGeneratorBenchmark {
+
+    @Param({"60"})
+    int totalAttributes;
+
+    @Param({"40"})
+    int changes;
+
+    @Param({"uniform"})
+    String keys;
+
+    MessageGenerator generator;
+    int deviceId = 0;
+
+    @Setup
+    public void setup() {
+        generator = new MessageGenerator(1000000, changes, totalAttributes,
+                KeyDistribution.parse(keys, 1000000));
+    }
+
+    @Benchmark
+    public Map<String, Object> partialMessage() {
+        return generator.getMessage();
+    }
+
+    @Benchmark
+    public Map<String, Object> fullMessage() {
+        return generator.getMessage(true, deviceId++);
+    }
+}
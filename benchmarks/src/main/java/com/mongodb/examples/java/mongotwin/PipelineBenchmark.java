@@ -0,0 +1,52 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Building the ServerSideStrategy update pipeline, for each shape it supports
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    static final int MESSAGES = 1024;
+
+    @Param({"perkey", "perattribute", "merge"})
+    String shape;
+
+    UpdatePipelineBuilder builder;
+    List<Map<String, Object>> messages = new ArrayList<>();
+    int next = 0;
+
+    @Setup
+    public void setup() {
+        builder = new UpdatePipelineBuilder(UpdatePipelineBuilder.parseShape(shape));
+        MessageGenerator generator = new MessageGenerator(100000, 40, 60);
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add(generator.getMessage());
+        }
+    }
+
+    @Benchmark
+    public RawBsonDocument buildSetStage() {
+        return builder.buildSetStage(messages.get(next++ & (MESSAGES - 1)));
+    }
+}
@@ -0,0 +1,96 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketReadTimeoutException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Tunes how many ops go in a bulkWrite while the run is going, one controller per strategy shared
+by all its threads.
+
+The right size depends on what an op costs - a whole twin, a blob or a 600 expression pipeline -
+and on the cluster, so rather than one fixed number this is AIMD, as TCP does for its window. Every
+full batch that comes back within the target latency grows the size by a fixed step. A batch that
+takes longer than the target shrinks it by a quarter, and a write conflict or a timeout halves it,
+so we back off quickly when the server is struggling and creep back up when it recovers.
+
+Batches that were sent short - cut off by --batch-bytes, or flushed early at the end of a read batch
+or a cache flush - say nothing about whether a bigger one would be fine, so they never grow it.
+ */
+class AdaptiveBatchSize {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveBatchSize.class);
+    private static final Map<String, AdaptiveBatchSize> BY_STRATEGY = new ConcurrentHashMap<>();
+    private static final int MIN_SIZE = 1;
+    private static final int STEP = 10;
+    // WriteConflict, MaxTimeMSExpired, WriteConcernFailed (wtimeout), ExceededTimeLimit
+    private static final Set<Integer> BACKOFF_CODES = Set.of(112, 50, 64, 262);
+
+    private final String strategy;
+    private final int maxSize;
+    private final long targetNanos;
+    private volatile int size;
+
+    private AdaptiveBatchSize(String strategy, int initialSize, int maxSize, long targetMs) {
+        this.strategy = strategy;
+        this.maxSize = maxSize;
+        this.targetNanos = targetMs * 1000000;
+        this.size = Math.min(initialSize, maxSize);
+    }
+
+    static AdaptiveBatchSize forStrategy(String strategy, int initialSize, int maxSize, long targetMs) {
+        return BY_STRATEGY.computeIfAbsent(strategy, s -> new AdaptiveBatchSize(s, initialSize, maxSize, targetMs));
+    }
+
+    int size() {
+        return size;
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    synchronized void onSuccess(int ops, long nanos) {
+        if (nanos > targetNanos) {
+            resize(size - Math.max(1, size / 4), "took " + nanos / 1000000 + "ms");
+        } else if (ops >= size) {
+            size = Math.min(maxSize, size + STEP);
+        }
+    }
+
+    synchronized void onError(RuntimeException e) {
+        if (isBackoffError(e)) {
+            resize(size / 2, e.getClass().getSimpleName());
+        }
+    }
+
+    private void resize(int newSize, String why) {
+        newSize = Math.max(MIN_SIZE, newSize);
+        if (newSize != size) {
+            LOG.debug(strategy + " batch size " + size + " -> " + newSize + ", " + why);
+            size = newSize;
+        }
+    }
+
+    static boolean isBackoffError(Throwable e) {
+        if (e instanceof MongoTimeoutException || e instanceof MongoSocketReadTimeoutException) {
+            return true;
+        }
+        if (e instanceof MongoBulkWriteException bulk) {
+            for (BulkWriteError error : bulk.getWriteErrors()) {
+                if (BACKOFF_CODES.contains(error.getCode())) {
+                    return true;
+                }
+            }
+            return bulk.getWriteConcernError() != null && BACKOFF_CODES.contains(bulk.getWriteConcernError().getCode());
+        }
+        return e instanceof MongoException mongo && BACKOFF_CODES.contains(mongo.getCode());
+    }
+}
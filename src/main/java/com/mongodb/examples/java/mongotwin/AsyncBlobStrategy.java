@@ -0,0 +1,32 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+
+/* BlobStrategy on the async driver, stored exactly the same way so either can read what the other wrote.
+
+BlobPacker looks up compression dictionaries with the blocking driver. That happens once when it is
+created and after that only for a payload written with a dictionary this run has not seen, which is
+cached, so blocking a driver thread for it now and then does no harm.
+ */
+class AsyncBlobStrategy extends AsyncReadModifyWriteStrategy {
+
+    private final int format;
+    private final BlobPacker packer;
+
+    AsyncBlobStrategy(MongoClient mongoClient, com.mongodb.client.MongoClient syncClient, CommandLineArgs args) {
+        super(mongoClient, args);
+        format = BlobStrategy.parseFormat(args.getBlobFormat());
+        packer = new BlobPacker(syncClient, args);
+    }
+
+    BsonDocument encodeTwin(Document twin) {
+        return BlobStrategy.getCompressedDocument(packer, format, twin);
+    }
+
+    Document decodeTwin(Document stored) {
+        return BlobStrategy.getDecompressedDocument(packer, stored);
+    }
+}
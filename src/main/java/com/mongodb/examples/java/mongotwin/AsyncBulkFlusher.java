@@ -0,0 +1,163 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.BsonDocument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/* BulkFlusher for the async strategies. Ops are batched the same way, by count or encoded size, but
+adding one returns a future that completes when the batch it went in has been written, and sending a
+batch never waits - it is just subscribing to the driver's bulkWrite. How much is in flight is up to
+AsyncWriteStrategy's permits, not a number of batches.
+
+Ops can be added from driver callback threads (a read completing and chaining into its write) as well
+as the thread running the strategy, hence the synchronized.
+
+Each op has its own future so a failed bulkWrite goes through the RetryPolicy just as it does in
+BulkFlusher - ops that were written complete, ops worth retrying are sent again after the backoff
+(from a timer, nothing waits) and only the ops given up on fail, with a DroppedException.
+ */
+class AsyncBulkFlusher {
+
+    // What the future of an op the RetryPolicy gave up on fails with
+    static class DroppedException extends RuntimeException {
+        DroppedException(String message) {
+            super(message);
+        }
+    }
+
+    private final MongoCollection<BsonDocument> collection;
+    private final WriteMetrics metrics;
+    private final AdaptiveBatchSize adaptive; // null for a fixed batch size of maxOps
+    private final RetryPolicy retryPolicy;    // null to fail the whole batch with whatever bulkWrite fails with
+    private final BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+    private final int maxOps;
+    private final long maxBytes;
+    private List<WriteModel<BsonDocument>> batch;
+    private List<CompletableFuture<Void>> batchWritten;
+    private long batchBytes = 0;
+
+    AsyncBulkFlusher(MongoCollection<BsonDocument> collection, WriteMetrics metrics, AdaptiveBatchSize adaptive,
+                     RetryPolicy retryPolicy, int maxOps, long maxBytes) {
+        this.collection = collection;
+        this.metrics = metrics;
+        this.adaptive = adaptive;
+        this.retryPolicy = retryPolicy;
+        this.maxOps = maxOps;
+        this.maxBytes = maxBytes;
+        this.batch = new ArrayList<>(maxOps);
+        this.batchWritten = new ArrayList<>(maxOps);
+    }
+
+    synchronized CompletableFuture<Void> add(WriteModel<BsonDocument> op) {
+        if (maxBytes > 0) {
+            long opBytes = BulkFlusher.encodedSize(op, collection.getCodecRegistry());
+            if (!batch.isEmpty() && batchBytes + opBytes > maxBytes) {
+                flush();
+            }
+            batchBytes += opBytes;
+        }
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        batch.add(op);
+        batchWritten.add(written);
+        if (batch.size() >= (adaptive != null ? adaptive.size() : maxOps)) {
+            flush();
+        }
+        return written;
+    }
+
+    // Start writing whatever is in the current batch
+    synchronized void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<WriteModel<BsonDocument>> toSend = batch;
+        List<CompletableFuture<Void>> written = batchWritten;
+        batch = new ArrayList<>(maxOps);
+        batchWritten = new ArrayList<>(maxOps);
+        batchBytes = 0;
+        send(toSend, written, null, 0);
+    }
+
+    // maybeWritten as for RetryPolicy.classify, null on the first try
+    private void send(List<WriteModel<BsonDocument>> toSend, List<CompletableFuture<Void>> written,
+                      boolean[] maybeWritten, int attempt) {
+        TwinEvents.BulkWriteEvent event = new TwinEvents.BulkWriteEvent();
+        event.begin();
+        long start = System.nanoTime();
+        AsyncWriteStrategy.first(collection.bulkWrite(toSend, options)).whenComplete((result, e) -> {
+            long nanos = System.nanoTime() - start;
+            metrics.record(WriteMetrics.Timer.BULK_WRITE, nanos);
+            if (e == null) {
+                metrics.recordBatch(toSend.size());
+                if (adaptive != null) {
+                    adaptive.onSuccess(toSend.size(), nanos);
+                }
+                event.ops = toSend.size();
+                event.background = true;
+                event.commit();
+                written.forEach(future -> future.complete(null));
+                return;
+            }
+            if (adaptive != null && e instanceof RuntimeException runtime) {
+                adaptive.onError(runtime);
+            }
+            RetryPolicy.Outcome[] outcomes;
+            boolean unknown;
+            try {
+                if (retryPolicy == null || !(e instanceof MongoException mongo)) {
+                    throw e;
+                }
+                outcomes = retryPolicy.classify(mongo, toSend, maybeWritten);
+                unknown = RetryPolicy.outcomeUnknown(mongo);
+            } catch (Throwable notRetryable) {
+                written.forEach(future -> future.completeExceptionally(notRetryable));
+                return;
+            }
+
+            List<WriteModel<BsonDocument>> retry = new ArrayList<>();
+            List<CompletableFuture<Void>> retryWritten = new ArrayList<>();
+            boolean[] retryMaybeWritten = new boolean[toSend.size()];
+            int failed = 0;
+            for (int i = 0; i < toSend.size(); i++) {
+                if (outcomes[i] == RetryPolicy.Outcome.WRITTEN) {
+                    written.get(i).complete(null);
+                } else if (outcomes[i] == RetryPolicy.Outcome.RETRY) {
+                    retryMaybeWritten[retry.size()] = unknown || (maybeWritten != null && maybeWritten[i]);
+                    retry.add(toSend.get(i));
+                    retryWritten.add(written.get(i));
+                } else {
+                    failed++;
+                    written.get(i).completeExceptionally(new DroppedException("Write failed and will not be retried"));
+                }
+            }
+            metrics.recordBatch(toSend.size() - retry.size() - failed);
+            metrics.recordFailed(failed);
+            event.ops = toSend.size() - retry.size() - failed;
+            event.background = true;
+            event.commit();
+            if (retry.isEmpty()) {
+                return;
+            }
+
+            if (attempt == retryPolicy.maxRetries) {
+                metrics.recordFailed(retry.size());
+                RetryPolicy.logError(retry.size() + " ops still failing after " + attempt + " retries, dropped");
+                for (CompletableFuture<Void> future : retryWritten) {
+                    future.completeExceptionally(new DroppedException("Still failing after " + attempt + " retries"));
+                }
+                return;
+            }
+            metrics.recordRetried(retry.size());
+            CompletableFuture.delayedExecutor(retryPolicy.backoffMillis(attempt), TimeUnit.MILLISECONDS)
+                    .execute(() -> send(retry, retryWritten, Arrays.copyOf(retryMaybeWritten, retry.size()), attempt + 1));
+        });
+    }
+}
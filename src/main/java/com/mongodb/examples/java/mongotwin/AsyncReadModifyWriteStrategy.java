@@ -0,0 +1,80 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/* ReadModifyWriteStrategy on the async driver. Each message starts its find straight away, and when
+the twin comes back the merge and the write are chained on to it, so the decode, merge and encode run
+on the driver's threads rather than the one generating messages. With this many reads in flight there
+is no need to batch them into $in queries, and there is no twin cache.
+
+Two messages for one device in flight at once would both read the old twin and one update would be
+lost, so a message for a device that already has one in flight waits for it to be written first.
+ */
+abstract class AsyncReadModifyWriteStrategy extends AsyncWriteStrategy {
+
+    // The latest message in flight for each device
+    private final Map<Object, CompletableFuture<Void>> inFlightByDevice = new ConcurrentHashMap<>();
+
+    AsyncReadModifyWriteStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        super(mongoClient, args);
+    }
+
+    // Turn a twin (with "e" as a map) into what we store in the database
+    abstract BsonDocument encodeTwin(Document twin);
+
+    // Turn what we stored in the database back into a twin
+    abstract Document decodeTwin(Document stored);
+
+    CompletableFuture<Void> WriteMessage(Map<String, Object> message) {
+        //Shortcut for bulk loading
+        if ((Boolean) message.remove("isNew")) {
+            Document twin = ReadModifyWriteStrategy.mergeMessage(null, message);
+            return twin != null ? flusher.add(new InsertOneModel<>(encodeTwin(twin)))
+                    : CompletableFuture.completedFuture(null);
+        }
+
+        Object id = message.get("_id");
+        CompletableFuture<Void> previous = inFlightByDevice.get(id);
+        CompletableFuture<Void> done = previous == null ? readMergeWrite(message)
+                // Whether or not the previous one worked, it is finished with the twin
+                : previous.handle((result, e) -> null).thenCompose(ignored -> readMergeWrite(message));
+        inFlightByDevice.put(id, done);
+        done.whenComplete((result, e) -> inFlightByDevice.remove(id, done));
+        return done;
+    }
+
+    private CompletableFuture<Void> readMergeWrite(Map<String, Object> message) {
+        Object id = message.get("_id");
+        TwinEvents.TwinReadEvent event = new TwinEvents.TwinReadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        return first(collection.find(Filters.eq("_id", id)).first()).thenCompose(stored -> {
+            metrics.record(WriteMetrics.Timer.FIND, System.nanoTime() - start);
+            event.strategy = metrics.strategy;
+            event.requested = 1;
+            event.found = stored == null ? 0 : 1;
+            event.commit();
+
+            Document existingDoc = stored != null ? decodeTwin(stored) : null;
+            Document twin = ReadModifyWriteStrategy.mergeMessage(existingDoc, message);
+            if (twin == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            BsonDocument encoded = encodeTwin(twin);
+            WriteModel<BsonDocument> op = existingDoc != null ? new ReplaceOneModel<>(new Document("_id", id), encoded)
+                    : new InsertOneModel<>(encoded);
+            return flusher.add(op);
+        });
+    }
+}
@@ -0,0 +1,25 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+
+/* ReadReplaceStrategy on the async driver - read the twin, merge in Java, replace the whole thing. */
+class AsyncReadReplaceStrategy extends AsyncReadModifyWriteStrategy {
+
+    private final AttributeLayout layout;
+
+    AsyncReadReplaceStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        super(mongoClient, args);
+        layout = AttributeLayout.from(args);
+    }
+
+    BsonDocument encodeTwin(Document twin) {
+        return TwinCodec.toRawBson(ReadReplaceStrategy.nestTwin(layout, twin));
+    }
+
+    Document decodeTwin(Document stored) {
+        return ReadReplaceStrategy.flattenTwin(layout, stored);
+    }
+}
@@ -0,0 +1,37 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.reactivestreams.client.MongoClient;
+import org.bson.RawBsonDocument;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+
+/* ServerSideStrategy on the async driver. There is no read so a message is just its update in a batch,
+the same pipeline the blocking version sends.
+ */
+class AsyncServerSideStrategy extends AsyncWriteStrategy {
+
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+    private final UpdatePipelineBuilder pipelineBuilder;
+
+    AsyncServerSideStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        super(mongoClient, args);
+        pipelineBuilder = new UpdatePipelineBuilder(UpdatePipelineBuilder.parseShape(args.getUpdateShape()),
+                AttributeLayout.from(args), args.getWatermarkMb() > 0 ? AttributeWatermarks.shared(args.getWatermarkMb()) : null);
+    }
+
+    CompletableFuture<Void> WriteMessage(Map<String, Object> message) {
+        RawBsonDocument setStage = pipelineBuilder.buildSetStage(message);
+        long[] sent = pipelineBuilder.sentWatermarks();
+        CompletableFuture<Void> written =
+                flusher.add(new UpdateOneModel<>(Filters.eq("_id", message.get("_id")), List.of(setStage), UPSERT));
+        // Only once it is written, a later update could otherwise be applied first and rely on it
+        return sent == null ? written : written.thenRun(() -> pipelineBuilder.acknowledged(sent));
+    }
+}
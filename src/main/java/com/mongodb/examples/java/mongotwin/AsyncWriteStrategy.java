@@ -0,0 +1,145 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* WriteStrategy for the reactive streams driver. Writing a message returns a future rather than
+waiting for the database, so a thread can move straight on to the next message while the last one's
+read or write is still on the network - a few threads keep thousands of messages in flight where
+the blocking strategies need a thread for each.
+
+What bounds it is a permit per message in flight (--async), held until the message's write has been
+acknowledged. When they are all taken the thread generating messages waits, so a slow server pushes
+back on the load rather than us queueing messages without limit.
+
+Writes are still batched, see AsyncBulkFlusher, so a message is only done when the batch its write
+went in comes back. If every permit is held by a message waiting for a batch to fill, nothing else
+will fill it, so a thread that has waited a while for a permit sends the batch as it is.
+
+Failed writes are retried by the flusher. A message whose write was given up on is counted and the
+run carries on; anything else that goes wrong stops the thread at its next message.
+ */
+abstract class AsyncWriteStrategy implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncWriteStrategy.class);
+
+    MongoClient mongoClient;
+    MongoCollection<Document> collection;
+    MongoCollection<BsonDocument> writeCollection;
+    final AsyncBulkFlusher flusher;
+    final WriteMetrics metrics;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final AtomicInteger failedMessages = new AtomicInteger();
+    private volatile Throwable writeError = null;
+
+    AsyncWriteStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        this.mongoClient = mongoClient;
+        collection = mongoClient.getDatabase("digitwin").getCollection("twins");
+        writeCollection = collection.withDocumentClass(BsonDocument.class);
+        metrics = WriteMetrics.forStrategy(getClass().getSimpleName());
+        flusher = new AsyncBulkFlusher(writeCollection, metrics,
+                WriteStrategy.adaptiveBatchSize(metrics.strategy, args), RetryPolicy.from(args), args.getBatchSize(),
+                args.getBatchBytes());
+        maxInFlight = args.getAsyncInFlight();
+        permits = new Semaphore(maxInFlight);
+    }
+
+    // What the run loop calls - returns as soon as the message is started, unless too many are in flight
+    public final void ProcessMessage(Map<String, Object> message) throws InterruptedException {
+        throwIfWriteFailed();
+        while (!permits.tryAcquire(1, TimeUnit.MILLISECONDS)) {
+            flusher.flush();
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Void> done;
+        try {
+            done = WriteMessage(message);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        done.whenComplete((result, e) -> {
+            permits.release();
+            if (e instanceof CompletionException completion && completion.getCause() != null) {
+                e = completion.getCause();
+            }
+            if (e instanceof AsyncBulkFlusher.DroppedException) {
+                // Already counted and logged by the RetryPolicy, the run carries on as the blocking ones do
+                failedMessages.incrementAndGet();
+            } else if (e != null) {
+                if (failedMessages.incrementAndGet() == 1) {
+                    LOG.error("Async write failed: " + e.getMessage());
+                }
+                writeError = e;
+            } else {
+                metrics.record(WriteMetrics.Timer.MESSAGE, System.nanoTime() - start);
+            }
+        });
+    }
+
+    // Completes when the message has been written
+    abstract CompletableFuture<Void> WriteMessage(Map<String, Object> message);
+
+    private void throwIfWriteFailed() {
+        Throwable e = writeError;
+        if (e != null) {
+            writeError = null;
+            throw e instanceof RuntimeException runtime ? runtime : new RuntimeException(e);
+        }
+    }
+
+    // The first item a publisher gives, or null if it completes without one - all the driver calls here give one at most
+    static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        publisher.subscribe(new Subscriber<T>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(T item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    // Wait for everything in flight, sending partial batches until it has all come back
+    @Override
+    public void close() throws Exception {
+        while (!permits.tryAcquire(maxInFlight, 1, TimeUnit.MILLISECONDS)) {
+            flusher.flush();
+        }
+        permits.release(maxInFlight);
+        if (failedMessages.get() > 0) {
+            LOG.error(failedMessages.get() + " messages failed to write");
+        }
+        throwIfWriteFailed();
+    }
+}
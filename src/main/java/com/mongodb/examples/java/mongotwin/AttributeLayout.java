@@ -0,0 +1,153 @@
+package com.mongodb.examples.java.mongotwin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Where an attribute lives in a stored twin's "e".
+
+FLAT is e.<nodeId>, what we always did. With thousands of attributes that is one very wide sub
+document and the server walks through it field by field to find each one it updates or compares, so
+the other layouts nest the attributes in a tree of branches at most fanout wide, as the data model
+section of the README suggests:
+
+    e.<branch>.<branch>.<nodeId>
+
+with just enough levels that no branch, or the leaves under the last one, has more than fanout
+entries for the configured number of attributes. Branch names are a single base 36 digit.
+
+PREFIX takes the branches from the nodeId's number written in base fanout, most significant digit
+first, so neighbouring sensors - which are usually numbered by subsystem - share a branch. NodeIds
+that are not 0x hex numbers are hashed. HASH always hashes, which spreads attributes evenly whatever
+their ids look like.
+
+The twin in memory keeps the flat map, only what is stored is nested, so a layout has to be used
+for both loading and testing.
+ */
+class AttributeLayout {
+
+    enum Kind {FLAT, PREFIX, HASH}
+
+    private static final Map<String, AttributeLayout> LAYOUTS = new ConcurrentHashMap<>();
+    private static final String[] NO_BRANCHES = new String[0];
+
+    final Kind kind;
+    final int fanout;
+    final int depth;
+    private final Map<String, String[]> branchesOf = new ConcurrentHashMap<>();
+
+    private AttributeLayout(Kind kind, int fanout, int totalAttributes) {
+        this.kind = kind;
+        this.fanout = fanout;
+        int levels = 0;
+        if (kind != Kind.FLAT) {
+            // Enough levels of branches that each last branch has at most fanout attributes in it
+            long capacity = fanout;
+            do {
+                levels++;
+                capacity *= fanout;
+            } while (capacity < totalAttributes);
+        }
+        this.depth = levels;
+    }
+
+    static AttributeLayout from(CommandLineArgs args) {
+        return of(args.getLayout(), args.getFanout(), args.getTotalAttributes());
+    }
+
+    static AttributeLayout of(String name, int fanout, int totalAttributes) {
+        Kind kind = parseKind(name);
+        return LAYOUTS.computeIfAbsent(kind + "/" + fanout + "/" + totalAttributes,
+                k -> new AttributeLayout(kind, fanout, totalAttributes));
+    }
+
+    static Kind parseKind(String name) {
+        return switch (name.toLowerCase()) {
+            case "flat" -> Kind.FLAT;
+            case "prefix" -> Kind.PREFIX;
+            case "hash" -> Kind.HASH;
+            default -> throw new IllegalArgumentException("Unknown layout: " + name);
+        };
+    }
+
+    boolean isFlat() {
+        return depth == 0;
+    }
+
+    // The branches from e down to the attribute, empty for FLAT
+    String[] branches(String nodeId) {
+        if (depth == 0) {
+            return NO_BRANCHES;
+        }
+        return branchesOf.computeIfAbsent(nodeId, this::assignBranches);
+    }
+
+    private String[] assignBranches(String nodeId) {
+        long n = -1;
+        if (kind == Kind.PREFIX && nodeId.startsWith("0x")) {
+            try {
+                n = Long.parseLong(nodeId, 2, nodeId.length(), 16);
+            } catch (NumberFormatException e) {
+                // Not a number after all
+            }
+        }
+        if (n < 0) {
+            n = AttributeWatermarks.hash64(nodeId) >>> 1;
+        }
+        // Drop the last digit, that is the attribute's place in its branch, and use the depth before it
+        n /= fanout;
+        String[] branches = new String[depth];
+        for (int level = depth - 1; level >= 0; level--) {
+            branches[level] = Character.toString(Character.forDigit((int) (n % fanout), fanout));
+            n /= fanout;
+        }
+        return branches;
+    }
+
+    // e.<branches>.<nodeId>
+    String path(String nodeId) {
+        StringBuilder path = new StringBuilder("e.");
+        for (String branch : branches(nodeId)) {
+            path.append(branch).append('.');
+        }
+        return path.append(nodeId).toString();
+    }
+
+    // The flat nodeId -> attribute map as it is stored
+    @SuppressWarnings("unchecked")
+    Map<String, Object> nest(Map<String, Object> flat) {
+        if (depth == 0) {
+            return flat;
+        }
+        Map<String, Object> root = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> attribute : flat.entrySet()) {
+            Map<String, Object> branch = root;
+            for (String name : branches(attribute.getKey())) {
+                branch = (Map<String, Object>) branch.computeIfAbsent(name, b -> new LinkedHashMap<>());
+            }
+            branch.put(attribute.getKey(), attribute.getValue());
+        }
+        return root;
+    }
+
+    // And back again
+    Map<String, Object> flatten(Map<String, Object> nested) {
+        if (depth == 0) {
+            return nested;
+        }
+        Map<String, Object> flat = new LinkedHashMap<>();
+        flattenInto(nested, 0, flat);
+        return flat;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flattenInto(Map<String, Object> branch, int level, Map<String, Object> flat) {
+        for (Map.Entry<String, Object> entry : branch.entrySet()) {
+            if (level == depth) {
+                flat.put(entry.getKey(), entry.getValue());
+            } else {
+                flattenInto((Map<String, Object>) entry.getValue(), level + 1, flat);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/* What ServerSideStrategy last sent for each device attribute, so it can leave out what would make
+no difference on the server.
+
+Every attribute in a message goes in the update with a $cond on its tsCC, so one older than what the
+server holds (the out of order messages) costs pipeline bytes and server CPU for nothing, and the
+keys that never change - unit, dataOwner and so on - are rewritten every time. With this table we
+drop attributes no newer than the last tsCC we sent and leave out the stable keys when they hash
+the same as last time.
+
+It is a direct mapped table in one direct ByteBuffer so millions of entries cost no heap or GC.
+Each 32 byte slot is a version, the 64 bit device attribute key, the tsCC and the stable key hash.
+It is shared by every thread and each slot is a seqlock - a writer CASes the version odd, writes and
+makes it even again, a reader retries if the version changed under it. Two keys landing on one slot
+just replace each other, and a key that is not there means send everything, so the table can be
+any size and is only ever a cache of what we sent.
+
+An attribute only goes in the table once the write carrying it has been acknowledged. Until then
+updates for it go in full. With a background sender, async batches in flight or several threads
+sharing the table, a later update can reach the server before an earlier one. If it had left out the
+stable keys on the strength of the earlier one, an attribute that did not exist yet would never get
+them. A left out key has no $cond for the server to decide on, so it is only left out once we know
+the server has it. A write that is dropped is never acknowledged, so it leaves nothing behind. Writers
+in other processes are not seen at all.
+ */
+class AttributeWatermarks {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttributeWatermarks.class);
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final int SLOT_BYTES = 32;
+    private static final int KEY = 8;
+    private static final int TIMESTAMP = 16;
+    private static final int HASH = 24;
+
+    // The keys of an attribute that we expect never to change
+    static final String[] STABLE_KEYS = {"unit", "dataOwner", "textId", "picId", "actuation", "isConfidential",
+            "expiresAt", "dataKeyId", "initialisationVector"};
+
+    static final LongAdder staleAttributes = new LongAdder();
+    static final LongAdder sentAttributes = new LongAdder();
+    static final LongAdder omittedKeys = new LongAdder();
+
+    private static volatile AttributeWatermarks shared;
+
+    private final ByteBuffer table;
+    private final int mask;
+
+    private AttributeWatermarks(int megabytes) {
+        int slots = Integer.highestOneBit((int) (((long) megabytes << 20) / SLOT_BYTES));
+        mask = slots - 1;
+        table = ByteBuffer.allocateDirect(slots * SLOT_BYTES + SLOT_BYTES).alignedSlice(SLOT_BYTES)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    // One table per JVM, whatever strategy asks first decides the size
+    static AttributeWatermarks shared(int megabytes) {
+        if (shared == null) {
+            synchronized (AttributeWatermarks.class) {
+                if (shared == null) {
+                    shared = new AttributeWatermarks(megabytes);
+                }
+            }
+        }
+        return shared;
+    }
+
+    // Generated ids are V_ and a number, use the number, anything else gets a 64 bit hash
+    static long deviceKey(Object id) {
+        if (id instanceof String s && s.startsWith("V_")) {
+            try {
+                return Long.parseLong(s, 2, s.length(), 10);
+            } catch (NumberFormatException e) {
+                // Not a number after all
+            }
+        }
+        return hash64(String.valueOf(id));
+    }
+
+    static long hash64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static long key(long deviceKey, long attributeKey) {
+        long k = mix(deviceKey * 0x9E3779B97F4A7C15L + attributeKey);
+        return k == 0 ? 1 : k; // 0 is an empty slot
+    }
+
+    // Hash of the stable keys' values, in a fixed order
+    static long stableHash(Map<String, Object> attribute) {
+        long h = 1;
+        for (String key : STABLE_KEYS) {
+            Object value = attribute.get(key);
+            h = h * 31 + (value == null ? 0 : value.hashCode());
+        }
+        return mix(h);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private int slot(long key) {
+        return ((int) (key ^ (key >>> 32)) & mask) * SLOT_BYTES;
+    }
+
+    /* The tsCC and stable hash last sent for key in out[0] and out[1], returning false if it is not
+    in the table. */
+    boolean get(long key, long[] out) {
+        int base = slot(key);
+        while (true) {
+            long version = (long) LONGS.getAcquire(table, base);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long slotKey = (long) LONGS.getOpaque(table, base + KEY);
+            long timestamp = (long) LONGS.getOpaque(table, base + TIMESTAMP);
+            long hash = (long) LONGS.getOpaque(table, base + HASH);
+            VarHandle.acquireFence();
+            if ((long) LONGS.getOpaque(table, base) != version) {
+                continue;
+            }
+            if (slotKey != key) {
+                return false;
+            }
+            out[0] = timestamp;
+            out[1] = hash;
+            return true;
+        }
+    }
+
+    // Record that we sent this tsCC for key, unless a later one has been sent already
+    void put(long key, long timestamp, long hash) {
+        int base = slot(key);
+        long version;
+        while (true) {
+            version = (long) LONGS.getVolatile(table, base);
+            if ((version & 1) == 0 && LONGS.compareAndSet(table, base, version, version + 1)) {
+                break;
+            }
+            Thread.onSpinWait();
+        }
+        if ((long) LONGS.get(table, base + KEY) != key || (long) LONGS.get(table, base + TIMESTAMP) < timestamp) {
+            LONGS.setOpaque(table, base + KEY, key);
+            LONGS.setOpaque(table, base + TIMESTAMP, timestamp);
+            LONGS.setOpaque(table, base + HASH, hash);
+        }
+        LONGS.setRelease(table, base, version + 2);
+    }
+
+    // Key, tsCC and hash triples, as UpdatePipelineBuilder.sentWatermarks() gives them
+    void putAll(long[] entries) {
+        for (int i = 0; i < entries.length; i += 3) {
+            put(entries[i], entries[i + 1], entries[i + 2]);
+        }
+    }
+
+    static void logStats() {
+        long stale = staleAttributes.sum();
+        long sent = sentAttributes.sum();
+        LOG.info("Attribute watermarks: " + stale + " stale attributes dropped of " + (stale + sent) + ", " +
+                omittedKeys.sum() + " unchanged keys left out");
+    }
+}
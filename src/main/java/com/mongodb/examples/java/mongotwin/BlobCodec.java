@@ -0,0 +1,61 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/* How BlobStrategy compresses a twin's bytes. Each codec has an id that is written at the start of
+the stored payload so a payload can always be read back whatever codec the run was started with.
+ */
+interface BlobCodec {
+
+    byte ZLIB = 1;
+    byte SNAPPY = 2;
+    byte ZLIB_DICTIONARY = 3;
+
+    byte id();
+
+    byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    byte[] decompress(byte[] data, int offset, int length) throws IOException;
+
+    class Zlib implements BlobCodec {
+        private final byte[] dictionary;
+
+        Zlib(byte[] dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        public byte id() {
+            return dictionary == null ? ZLIB : ZLIB_DICTIONARY;
+        }
+
+        public byte[] compress(byte[] data, int offset, int length) {
+            return BsonCompression.compress(data, offset, length, dictionary);
+        }
+
+        public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+            return BsonCompression.decompress(data, offset, length, dictionary);
+        }
+    }
+
+    // Much faster than zlib both ways but compresses less, and has no dictionary support
+    class SnappyCodec implements BlobCodec {
+        public byte id() {
+            return SNAPPY;
+        }
+
+        public byte[] compress(byte[] data, int offset, int length) throws IOException {
+            byte[] out = new byte[Snappy.maxCompressedLength(length)];
+            int written = Snappy.compress(data, offset, length, out, 0);
+            return Arrays.copyOf(out, written);
+        }
+
+        public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+            byte[] out = new byte[Snappy.uncompressedLength(data, offset, length)];
+            Snappy.uncompress(data, offset, length, out, 0);
+            return out;
+        }
+    }
+}
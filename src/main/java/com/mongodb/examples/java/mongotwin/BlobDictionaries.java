@@ -0,0 +1,129 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/* Preset dictionaries for zlib compressed blobs.
+
+Every twin has the same keys in the same order and most of the values of a given attribute come
+from small fixed sets, so a dictionary made of real attributes covers most of what is in any twin.
+We train one from generated sample twins the first time it is needed and store it in
+digitwin.blobdicts. Each payload records the id of the dictionary it was compressed with, so twins
+written by other runs or other clients, even with a different dictionary, can always be read back.
+zlib can only look back 32KB so that is as big as a dictionary is useful.
+ */
+class BlobDictionaries {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlobDictionaries.class);
+    static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+    private static final int SAMPLE_DEVICES = 10;
+
+    private static final Map<Integer, byte[]> BY_ID = new ConcurrentHashMap<>();
+    private static volatile Integer currentId = null;
+
+    // The dictionary new payloads use - the newest stored one, or a new one if there are none
+    static int current(MongoCollection<Document> dictionaries, int totalAttributes) {
+        Integer id = currentId;
+        if (id != null) {
+            return id;
+        }
+        synchronized (BlobDictionaries.class) {
+            if (currentId == null) {
+                Document newest = dictionaries.find().sort(Sorts.descending("created")).first();
+                if (newest != null) {
+                    currentId = newest.getInteger("_id");
+                    BY_ID.put(currentId, newest.get("dictionary", Binary.class).getData());
+                    LOG.info("Using blob dictionary " + currentId);
+                } else {
+                    byte[] dictionary = train(totalAttributes);
+                    int newId = idOf(dictionary);
+                    try {
+                        dictionaries.insertOne(new Document("_id", newId).append("created", new Date())
+                                .append("dictionary", new Binary(dictionary)));
+                    } catch (MongoWriteException e) {
+                        if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                            throw e;
+                        }
+                    }
+                    BY_ID.put(newId, dictionary);
+                    currentId = newId;
+                    LOG.info("Trained blob dictionary " + newId + " of " + dictionary.length + " bytes");
+                }
+            }
+            return currentId;
+        }
+    }
+
+    // digitwin.blobdicts has been dropped, so what we remember of it is gone too
+    static synchronized void reset() {
+        BY_ID.clear();
+        currentId = null;
+    }
+
+    static byte[] byId(MongoCollection<Document> dictionaries, int id) {
+        return BY_ID.computeIfAbsent(id, missing -> {
+            Document stored = dictionaries.find(Filters.eq("_id", missing)).first();
+            if (stored == null) {
+                throw new IllegalStateException("Blob dictionary " + missing + " is not in the database");
+            }
+            return stored.get("dictionary", Binary.class).getData();
+        });
+    }
+
+    /* The attributes of a few generated twins, as BSON, up to the dictionary size. zlib finds
+    matches more cheaply the nearer they are to the end of the dictionary so the top level fields,
+    which every twin starts with, go last.
+     */
+    @SuppressWarnings("unchecked")
+    static byte[] train(int totalAttributes) {
+        MessageGenerator generator = new MessageGenerator(SAMPLE_DEVICES, totalAttributes, totalAttributes);
+        ByteArrayOutputStream attributes = new ByteArrayOutputStream();
+        byte[] topLevel = null;
+        for (int device = 0; device < SAMPLE_DEVICES && attributes.size() < MAX_DICTIONARY_BYTES; device++) {
+            Map<String, Object> sample = generator.getMessage(true, device);
+            sample.remove("isNew");
+            for (Object attribute : (List<?>) sample.remove("e")) {
+                byte[] bytes = bsonBytes(TwinCodec.toRawBson((Map<String, Object>) attribute));
+                attributes.write(bytes, 0, bytes.length);
+            }
+            if (topLevel == null) {
+                topLevel = bsonBytes(TwinCodec.toRawBson(sample));
+            }
+        }
+
+        int attributeBytes = Math.min(attributes.size(), MAX_DICTIONARY_BYTES - topLevel.length);
+        ByteBuffer dictionary = ByteBuffer.allocate(attributeBytes + topLevel.length);
+        dictionary.put(attributes.toByteArray(), 0, attributeBytes);
+        dictionary.put(topLevel);
+        return dictionary.array();
+    }
+
+    private static byte[] bsonBytes(RawBsonDocument document) {
+        ByteBuffer buffer = document.getByteBuffer().asNIO();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int idOf(byte[] dictionary) {
+        CRC32 crc = new CRC32();
+        crc.update(dictionary);
+        return (int) crc.getValue();
+    }
+}
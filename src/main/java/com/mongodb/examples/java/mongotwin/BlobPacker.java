@@ -0,0 +1,95 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* Turns bytes into a stored blob payload and back, for the blob strategies.
+
+The payload starts with a byte giving the format of what was compressed and the codec, followed for
+dictionary compression by the dictionary id, so what is stored can always be read back regardless
+of how this run is configured. Payloads from before there was a header are plain zlib compressed
+JSON, which always starts with 0x78, so we can still read those too.
+ */
+class BlobPacker {
+
+    static final int FORMAT_JSON = 0;
+    static final int FORMAT_BSON = 1;
+    private static final int LEGACY_ZLIB_JSON = 0x78;
+    private static final BlobCodec ZLIB = new BlobCodec.Zlib(null);
+    private static final BlobCodec SNAPPY = new BlobCodec.SnappyCodec();
+
+    // What was in a payload
+    record Unpacked(int format, byte[] bytes) {
+    }
+
+    private final BlobCodec codec;
+    private final int dictionaryId;
+    private final MongoCollection<Document> dictionaries;
+
+    BlobPacker(MongoClient mongoClient, CommandLineArgs args) {
+        dictionaries = mongoClient.getDatabase("digitwin").getCollection("blobdicts");
+        switch (args.getBlobCodec().toLowerCase()) {
+            case "zlib" -> {
+                codec = ZLIB;
+                dictionaryId = 0;
+            }
+            case "snappy" -> {
+                codec = SNAPPY;
+                dictionaryId = 0;
+            }
+            case "zlib-dict" -> {
+                dictionaryId = BlobDictionaries.current(dictionaries, args.getTotalAttributes());
+                codec = new BlobCodec.Zlib(BlobDictionaries.byId(dictionaries, dictionaryId));
+            }
+            default -> throw new IllegalArgumentException("Unknown blob codec: " + args.getBlobCodec());
+        }
+    }
+
+    byte[] pack(int format, byte[] data, int offset, int length) {
+        byte[] compressed;
+        try {
+            compressed = codec.compress(data, offset, length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        int headerLength = codec.id() == BlobCodec.ZLIB_DICTIONARY ? 5 : 1;
+        ByteBuffer payload = ByteBuffer.allocate(headerLength + compressed.length);
+        payload.put((byte) (format << 4 | codec.id()));
+        if (headerLength == 5) {
+            payload.putInt(dictionaryId);
+        }
+        payload.put(compressed);
+        return payload.array();
+    }
+
+    Unpacked unpack(byte[] payload) {
+        int header = payload[0] & 0xFF;
+        try {
+            if (header == LEGACY_ZLIB_JSON) {
+                return new Unpacked(FORMAT_JSON, BsonCompression.decompressBsonBytes(payload));
+            }
+
+            BlobCodec payloadCodec;
+            int offset = 1;
+            switch (header & 0x0F) {
+                case BlobCodec.ZLIB -> payloadCodec = ZLIB;
+                case BlobCodec.SNAPPY -> payloadCodec = SNAPPY;
+                case BlobCodec.ZLIB_DICTIONARY -> {
+                    int id = ByteBuffer.wrap(payload, 1, 4).getInt();
+                    payloadCodec = id == dictionaryId ? codec
+                            : new BlobCodec.Zlib(BlobDictionaries.byId(dictionaries, id));
+                    offset = 5;
+                }
+                default -> throw new IOException("Unknown blob codec " + (header & 0x0F));
+            }
+            return new Unpacked(header >> 4, payloadCodec.decompress(payload, offset, payload.length - offset));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
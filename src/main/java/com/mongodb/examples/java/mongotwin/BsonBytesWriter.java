@@ -0,0 +1,243 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Writes BSON straight into a byte array.
+
+BsonBinaryWriter over a BasicOutputBuffer goes through a ByteBuffer a byte at a time and re-encodes
+every field name on every document. Our documents are the same few dozen names over and over, so here
+names are encoded to UTF-8 once and cached, and everything is written into a plain array that grows
+as needed and is reused from one document to the next. Lengths of documents and arrays are patched
+in when they are closed.
+
+Only the value types our messages and pipelines use are supported, anything else is an error. Not
+thread safe, use one per thread.
+ */
+final class BsonBytesWriter {
+
+    private static final Map<String, byte[]> NAMES = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_NAMES = 100000;
+    private static final byte[][] INDEX_NAMES = new byte[1024][];
+
+    static {
+        for (int i = 0; i < INDEX_NAMES.length; i++) {
+            INDEX_NAMES[i] = cString(Integer.toString(i));
+        }
+    }
+
+    private byte[] buf = new byte[4096];
+    private int pos = 0;
+    private int[] openDocuments = new int[16]; // Where each open document or array starts
+    private int[] arrayIndex = new int[16];    // Next element index for arrays, -1 for documents
+    private int depth = 0;
+
+    void reset() {
+        pos = 0;
+        depth = 0;
+    }
+
+    // How far the buffer has grown
+    int capacity() {
+        return buf.length;
+    }
+
+    private static byte[] cString(String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        return Arrays.copyOf(utf8, utf8.length + 1);
+    }
+
+    private static byte[] nameBytes(String name) {
+        byte[] bytes = NAMES.get(name);
+        if (bytes == null) {
+            bytes = cString(name);
+            // Field names are almost all from a small fixed set, but don't grow forever if they are not
+            if (NAMES.size() < MAX_CACHED_NAMES) {
+                NAMES.put(name, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    private void ensure(int more) {
+        if (pos + more > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + more));
+        }
+    }
+
+    private void putInt(int v) {
+        ensure(4);
+        buf[pos++] = (byte) v;
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) (v >>> 16);
+        buf[pos++] = (byte) (v >>> 24);
+    }
+
+    private void putLong(long v) {
+        ensure(8);
+        for (int i = 0; i < 8; i++) {
+            buf[pos++] = (byte) (v >>> (8 * i));
+        }
+    }
+
+    private void putBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    // Type byte and name, inside an array the name is the next index
+    private void element(BsonType type, String name) {
+        ensure(1);
+        buf[pos++] = (byte) type.getValue();
+        if (depth > 0 && arrayIndex[depth - 1] >= 0) {
+            int index = arrayIndex[depth - 1]++;
+            putBytes(index < INDEX_NAMES.length ? INDEX_NAMES[index] : cString(Integer.toString(index)));
+        } else {
+            putBytes(nameBytes(name));
+        }
+    }
+
+    private void open(boolean isArray) {
+        if (depth == openDocuments.length) {
+            openDocuments = Arrays.copyOf(openDocuments, depth * 2);
+            arrayIndex = Arrays.copyOf(arrayIndex, depth * 2);
+        }
+        openDocuments[depth] = pos;
+        arrayIndex[depth] = isArray ? 0 : -1;
+        depth++;
+        putInt(0); // Length, patched on close
+    }
+
+    private void close() {
+        ensure(1);
+        buf[pos++] = 0;
+        depth--;
+        int start = openDocuments[depth];
+        int length = pos - start;
+        buf[start] = (byte) length;
+        buf[start + 1] = (byte) (length >>> 8);
+        buf[start + 2] = (byte) (length >>> 16);
+        buf[start + 3] = (byte) (length >>> 24);
+    }
+
+    // The top level document, or a document element of an array
+    void startDocument() {
+        if (depth > 0) {
+            element(BsonType.DOCUMENT, null);
+        }
+        open(false);
+    }
+
+    void startDocument(String name) {
+        element(BsonType.DOCUMENT, name);
+        open(false);
+    }
+
+    void endDocument() {
+        close();
+    }
+
+    void startArray(String name) {
+        element(BsonType.ARRAY, name);
+        open(true);
+    }
+
+    void endArray() {
+        close();
+    }
+
+    void writeString(String name, String value) {
+        element(BsonType.STRING, name);
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        putInt(utf8.length + 1);
+        ensure(utf8.length + 1);
+        System.arraycopy(utf8, 0, buf, pos, utf8.length);
+        pos += utf8.length;
+        buf[pos++] = 0;
+    }
+
+    void writeInt64(String name, long value) {
+        element(BsonType.INT64, name);
+        putLong(value);
+    }
+
+    // For array elements, where the name is ignored
+    void writeString(String value) {
+        writeString(null, value);
+    }
+
+    void writeInt64(long value) {
+        writeInt64(null, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    void writeValue(String name, Object value) {
+        if (value == null) {
+            element(BsonType.NULL, name);
+        } else if (value instanceof String s) {
+            writeString(name, s);
+        } else if (value instanceof Long l) {
+            writeInt64(name, l);
+        } else if (value instanceof Integer i) {
+            element(BsonType.INT32, name);
+            putInt(i);
+        } else if (value instanceof Boolean b) {
+            element(BsonType.BOOLEAN, name);
+            ensure(1);
+            buf[pos++] = (byte) (b ? 1 : 0);
+        } else if (value instanceof Date d) {
+            element(BsonType.DATE_TIME, name);
+            putLong(d.getTime());
+        } else if (value instanceof Double d) {
+            element(BsonType.DOUBLE, name);
+            putLong(Double.doubleToRawLongBits(d));
+        } else if (value instanceof Map<?, ?> map) {
+            startDocument(name);
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) map).entrySet()) {
+                writeValue(entry.getKey(), entry.getValue());
+            }
+            endDocument();
+        } else if (value instanceof List<?> list) {
+            startArray(name);
+            for (Object item : list) {
+                writeValue(null, item);
+            }
+            endArray();
+        } else if (value instanceof Binary binary) {
+            writeBinary(name, binary.getType(), binary.getData());
+        } else if (value instanceof byte[] bytes) {
+            writeBinary(name, (byte) 0, bytes);
+        } else if (value instanceof ObjectId oid) {
+            element(BsonType.OBJECT_ID, name);
+            putBytes(oid.toByteArray());
+        } else {
+            throw new IllegalArgumentException("Cannot write a " + value.getClass().getName() + " as BSON");
+        }
+    }
+
+    private void writeBinary(String name, byte subtype, byte[] data) {
+        element(BsonType.BINARY, name);
+        putInt(data.length);
+        ensure(1);
+        buf[pos++] = subtype;
+        putBytes(data);
+    }
+
+    // A copy of what has been written, which must be a single complete document
+    RawBsonDocument toRawBsonDocument() {
+        if (depth != 0) {
+            throw new IllegalStateException("Document is not complete");
+        }
+        return new RawBsonDocument(Arrays.copyOf(buf, pos));
+    }
+}
@@ -1,49 +1,113 @@
 package com.mongodb.examples.java.mongotwin;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
+/* zlib compression of twin payloads.
+
+A Deflater holds a few hundred KB of native state and is expensive to set up, so rather than a new
+Deflater, Inflater and scratch buffer per call they live together in a pooled context that is reset
+between uses. A pool rather than a ThreadLocal as with virtual threads there can be far more threads
+than there are ever compressions running at once.
+
+With a preset dictionary zlib starts off already knowing the dictionary bytes and can refer back
+into them from the first byte, which for small documents that all share the same keys is most of
+the saving. The same dictionary has to be given to decompress.
+ */
 public class BsonCompression {
 
+    private static final int MAX_POOLED = 256;
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+    // Bounded so giving back can just offer, a ConcurrentLinkedQueue's size() walks the whole queue
+    private static final ArrayBlockingQueue<Context> POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private static class Context {
+        final Deflater deflater = new Deflater();
+        final Inflater inflater = new Inflater();
+        byte[] buffer = new byte[64 * 1024];
+    }
+
+    private static Context borrow() {
+        Context context = POOL.poll();
+        return context != null ? context : new Context();
+    }
+
+    private static void giveBack(Context context) {
+        if (context.buffer.length > MAX_RETAINED_BUFFER) {
+            context.buffer = new byte[64 * 1024];
+        }
+        if (!POOL.offer(context)) {
+            context.deflater.end();
+            context.inflater.end();
+        }
+    }
+
     // Compress BSON bytes using zlib (Deflater)
-    public static byte[] compressBsonBytes(byte[] bsonBytes) throws IOException {
-        Deflater deflater = new Deflater();
-        deflater.setInput(bsonBytes);
-        deflater.finish();
+    public static byte[] compressBsonBytes(byte[] bsonBytes) {
+        return compress(bsonBytes, 0, bsonBytes.length, null);
+    }
+
+    // Decompress zlib-compressed bytes back to BSON
+    public static byte[] decompressBsonBytes(byte[] compressedBytes) throws IOException {
+        return decompress(compressedBytes, 0, compressedBytes.length, null);
+    }
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            byte[] buffer = new byte[1024];
+    static byte[] compress(byte[] data, int offset, int length, byte[] dictionary) {
+        Context context = borrow();
+        try {
+            Deflater deflater = context.deflater;
+            deflater.reset();
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            int written = 0;
             while (!deflater.finished()) {
-                int count = deflater.deflate(buffer);
-                baos.write(buffer, 0, count);
+                if (written == context.buffer.length) {
+                    context.buffer = Arrays.copyOf(context.buffer, context.buffer.length * 2);
+                }
+                written += deflater.deflate(context.buffer, written, context.buffer.length - written);
             }
-            return baos.toByteArray();
+            return Arrays.copyOf(context.buffer, written);
         } finally {
-            deflater.end();
+            giveBack(context);
         }
     }
 
-    // Decompress zlib-compressed bytes back to BSON
-    public static byte[] decompressBsonBytes(byte[] compressedBytes) throws IOException {
-        Inflater inflater = new Inflater();
-        inflater.setInput(compressedBytes);
-
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            byte[] buffer = new byte[1024];
+    static byte[] decompress(byte[] data, int offset, int length, byte[] dictionary) throws IOException {
+        Context context = borrow();
+        try {
+            Inflater inflater = context.inflater;
+            inflater.reset();
+            inflater.setInput(data, offset, length);
+            int read = 0;
             while (!inflater.finished()) {
-                try {
-                    int count = inflater.inflate(buffer);
-                    baos.write(buffer, 0, count);
-                } catch (DataFormatException e) {
-                    throw new IOException("Invalid compressed data format", e);
+                if (read == context.buffer.length) {
+                    context.buffer = Arrays.copyOf(context.buffer, context.buffer.length * 2);
+                }
+                int count = inflater.inflate(context.buffer, read, context.buffer.length - read);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) {
+                            throw new IOException("Compressed data needs a dictionary");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Compressed data is truncated");
+                    }
                 }
+                read += count;
             }
-            return baos.toByteArray();
+            return Arrays.copyOf(context.buffer, read);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data format", e);
         } finally {
-            inflater.end();
+            giveBack(context);
         }
     }
 }
@@ -0,0 +1,346 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/* Collects write operations into batches and sends them with bulkWrite.
+
+With maxInFlight of 0 each batch is sent inline on the calling thread, which is what WriteStrategy
+always used to do. Otherwise batches are handed to a small sender pool so the worker can carry on
+generating and merging messages while the previous batch is on the network. Batch buffers are
+recycled so with one batch in flight this is classic double buffering - one being filled, one being
+sent. When maxInFlight batches are outstanding the worker blocks until one comes back.
+
+A batch is sent when it reaches maxOps operations (or whatever AdaptiveBatchSize has settled on) or, if maxBytes is set, when adding the next
+operation would take it over maxBytes of encoded BSON. The strategies send RawBsonDocuments so the
+size is already known, anything else has to be encoded an extra time to measure it.
+
+In an open loop run a batch can take a long time to fill at the rate messages are scheduled, and that
+wait would be most of the INTENDED latency. So with a max linger set, a partial batch whose first op
+has waited that long is sent by the next flushIfLingering(), which WriteStrategy calls per message.
+
+When a bulkWrite fails the RetryPolicy decides which of its ops are sent again, after a backoff, on
+the same thread - so a batch being retried still counts against maxInFlight and workers slow down
+rather than pile up more work while the cluster recovers.
+ */
+class BulkFlusher implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkFlusher.class);
+    private static final AtomicInteger SENDER_COUNT = new AtomicInteger();
+
+    private final MongoCollection<BsonDocument> collection;
+    private final WriteMetrics metrics;
+    private final AdaptiveBatchSize adaptive; // null for a fixed batch size of maxOps
+    private final RetryPolicy retryPolicy;    // null to throw whatever bulkWrite throws
+    private final BulkWriteOptions options;
+    private final int maxOps;
+    private final long maxBytes;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService sender;
+    private final Queue<List<WriteModel<BsonDocument>>> spareBatches = new ConcurrentLinkedQueue<>();
+    private List<WriteModel<BsonDocument>> batch;
+    private long batchBytes = 0;
+    // In open loop runs, when the message behind each op in the batch should have been sent
+    private final long[] intended;
+    private long intendedNanos = 0;
+    // The longest a partial batch waits to fill, 0 for as long as it takes, and when the current one started
+    private long maxLingerNanos = 0;
+    private long batchStartNanos = 0;
+    private volatile RuntimeException sendError = null;
+    // Ops given up on, here as well as in the metrics so a caller can tell which of its writes were lost
+    private final AtomicLong failedOps = new AtomicLong();
+    // Told about each op written and each op given up on, from whichever thread sent it
+    private volatile Consumer<WriteModel<BsonDocument>> writeListener = null;
+    private volatile Consumer<WriteModel<BsonDocument>> dropListener = null;
+
+    BulkFlusher(MongoCollection<BsonDocument> collection, WriteMetrics metrics, AdaptiveBatchSize adaptive,
+                RetryPolicy retryPolicy, int maxOps, long maxBytes, int maxInFlight) {
+        this.collection = collection;
+        this.metrics = metrics;
+        this.adaptive = adaptive;
+        this.retryPolicy = retryPolicy;
+        this.options = new BulkWriteOptions().ordered(false);
+        this.maxOps = maxOps;
+        this.maxBytes = maxBytes;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.batch = new ArrayList<>(maxOps);
+        this.intended = new long[adaptive != null ? Math.max(maxOps, adaptive.maxSize()) : maxOps];
+        if (maxInFlight > 0) {
+            sender = Executors.newFixedThreadPool(maxInFlight, r -> {
+                Thread t = new Thread(r, "bulk-sender-" + SENDER_COUNT.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            sender = null;
+        }
+    }
+
+    void add(WriteModel<BsonDocument> op) {
+        if (maxBytes > 0) {
+            long opBytes = encodedSize(op, collection.getCodecRegistry());
+            if (!batch.isEmpty() && batchBytes + opBytes > maxBytes) {
+                flush();
+            }
+            batchBytes += opBytes;
+        }
+        if (maxLingerNanos > 0 && batch.isEmpty()) {
+            batchStartNanos = System.nanoTime();
+        }
+        intended[batch.size()] = intendedNanos;
+        batch.add(op);
+        if (batch.size() >= (adaptive != null ? adaptive.size() : maxOps)) {
+            flush();
+        }
+    }
+
+    void onWritten(Consumer<WriteModel<BsonDocument>> listener) {
+        this.writeListener = listener;
+    }
+
+    void onDropped(Consumer<WriteModel<BsonDocument>> listener) {
+        this.dropListener = listener;
+    }
+
+    void setMaxLinger(long millis) {
+        this.maxLingerNanos = millis * 1000000;
+    }
+
+    // Send the current batch if it has waited longer than the max linger for more ops
+    void flushIfLingering() {
+        if (maxLingerNanos > 0 && !batch.isEmpty() && System.nanoTime() - batchStartNanos >= maxLingerNanos) {
+            flush();
+        }
+    }
+
+    // Ops added from now on are on behalf of a message that should have gone at this System.nanoTime(), 0 if none
+    void setIntendedTime(long intendedNanos) {
+        this.intendedNanos = intendedNanos;
+    }
+
+    // Send whatever is in the current batch, without waiting for it to complete
+    void flush() {
+        throwIfSendFailed();
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<WriteModel<BsonDocument>> toSend = batch;
+        batchBytes = 0;
+        long[] toSendIntended = intended[0] != 0 ? Arrays.copyOf(intended, toSend.size()) : null;
+
+        if (sender == null) {
+            try {
+                send(toSend, toSendIntended, false);
+            } finally {
+                // Or close() would send the same batch again
+                toSend.clear();
+            }
+            return;
+        }
+
+        inFlight.acquireUninterruptibly();
+        List<WriteModel<BsonDocument>> spare = spareBatches.poll();
+        batch = spare != null ? spare : new ArrayList<>(maxOps);
+        sender.execute(() -> {
+            try {
+                send(toSend, toSendIntended, true);
+            } catch (RuntimeException e) {
+                LOG.error("Background bulk write failed: " + e.getMessage());
+                sendError = e;
+            } finally {
+                toSend.clear();
+                spareBatches.offer(toSend);
+                inFlight.release();
+            }
+        });
+    }
+
+    private void send(List<WriteModel<BsonDocument>> toSend, long[] toSendIntended, boolean background) {
+        List<WriteModel<BsonDocument>> pending = toSend;
+        long[] pendingIntended = toSendIntended;
+        boolean[] maybeWritten = null;
+        for (int attempt = 0; ; attempt++) {
+            TwinEvents.BulkWriteEvent event = new TwinEvents.BulkWriteEvent();
+            event.begin();
+            long start = System.nanoTime();
+            RetryPolicy.Outcome[] outcomes = null; // null when everything was written
+            boolean unknown = false;
+            try {
+                collection.bulkWrite(pending, options);
+            } catch (MongoException e) {
+                if (adaptive != null) {
+                    adaptive.onError(e);
+                }
+                if (retryPolicy == null) {
+                    throw e;
+                }
+                outcomes = retryPolicy.classify(e, pending, maybeWritten);
+                unknown = RetryPolicy.outcomeUnknown(e);
+            }
+            long end = System.nanoTime();
+            metrics.record(WriteMetrics.Timer.BULK_WRITE, end - start);
+            if (adaptive != null && outcomes == null) {
+                adaptive.onSuccess(pending.size(), end - start);
+            }
+
+            List<WriteModel<BsonDocument>> retry = new ArrayList<>();
+            List<Long> retryIntended = new ArrayList<>();
+            List<Boolean> retryMaybeWritten = new ArrayList<>();
+            int failed = 0;
+            Consumer<WriteModel<BsonDocument>> onWrite = writeListener;
+            for (int i = 0; i < pending.size(); i++) {
+                RetryPolicy.Outcome outcome = outcomes == null ? RetryPolicy.Outcome.WRITTEN : outcomes[i];
+                long intendedNanos = pendingIntended != null ? pendingIntended[i] : 0;
+                if (outcome == RetryPolicy.Outcome.WRITTEN) {
+                    if (onWrite != null) {
+                        onWrite.accept(pending.get(i));
+                    }
+                    // Measured from when the message should have been sent, so any time spent queued behind a slow server counts
+                    if (intendedNanos != 0) {
+                        metrics.record(WriteMetrics.Timer.INTENDED, end - intendedNanos);
+                    }
+                } else if (outcome == RetryPolicy.Outcome.RETRY) {
+                    retry.add(pending.get(i));
+                    retryIntended.add(intendedNanos);
+                    retryMaybeWritten.add(unknown || (maybeWritten != null && maybeWritten[i]));
+                } else {
+                    failed++;
+                    dropped(pending.get(i));
+                }
+            }
+            int written = pending.size() - retry.size() - failed;
+            metrics.recordBatch(written);
+            recordFailed(failed);
+            event.ops = written;
+            event.background = background;
+            event.commit();
+            if (retry.isEmpty()) {
+                return;
+            }
+
+            if (attempt == retryPolicy.maxRetries) {
+                recordFailed(retry.size());
+                retry.forEach(this::dropped);
+                RetryPolicy.logError(retry.size() + " ops still failing after " + attempt + " retries, dropped");
+                return;
+            }
+            metrics.recordRetried(retry.size());
+            try {
+                Thread.sleep(retryPolicy.backoffMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                recordFailed(retry.size());
+                retry.forEach(this::dropped);
+                return;
+            }
+            pending = retry;
+            maybeWritten = new boolean[retry.size()];
+            for (int i = 0; i < maybeWritten.length; i++) {
+                maybeWritten[i] = retryMaybeWritten.get(i);
+            }
+            pendingIntended = pendingIntended == null ? null :
+                    retryIntended.stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    long failedOps() {
+        return failedOps.get();
+    }
+
+    private void recordFailed(int ops) {
+        failedOps.addAndGet(ops);
+        metrics.recordFailed(ops);
+    }
+
+    private void dropped(WriteModel<BsonDocument> op) {
+        Consumer<WriteModel<BsonDocument>> listener = dropListener;
+        if (listener != null) {
+            listener.accept(op);
+        }
+    }
+
+    // Send the current batch and wait until nothing is in flight
+    void drain() {
+        flush();
+        if (sender != null) {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+        throwIfSendFailed();
+    }
+
+    private void throwIfSendFailed() {
+        RuntimeException e = sendError;
+        if (e != null) {
+            sendError = null;
+            throw e;
+        }
+    }
+
+    static long encodedSize(WriteModel<BsonDocument> op, CodecRegistry registry) {
+        if (op instanceof InsertOneModel<BsonDocument> insert) {
+            return bsonSize(insert.getDocument(), registry);
+        }
+        if (op instanceof ReplaceOneModel<BsonDocument> replace) {
+            return bsonSize(replace.getFilter(), registry) + bsonSize(replace.getReplacement(), registry);
+        }
+        if (op instanceof UpdateOneModel<BsonDocument> update) {
+            long size = bsonSize(update.getFilter(), registry);
+            if (update.getUpdatePipeline() != null) {
+                for (Bson stage : update.getUpdatePipeline()) {
+                    size += bsonSize(stage, registry);
+                }
+            } else {
+                size += bsonSize(update.getUpdate(), registry);
+            }
+            return size;
+        }
+        return 0;
+    }
+
+    // Free for the RawBsonDocuments the strategies build, anything else has to be encoded to measure it
+    private static long bsonSize(Bson bson, CodecRegistry registry) {
+        if (bson instanceof RawBsonDocument raw) {
+            return raw.getByteBuffer().remaining();
+        }
+        BsonDocument doc = bson.toBsonDocument(BsonDocument.class, registry);
+        return new RawBsonDocument(doc, new BsonDocumentCodec()).getByteBuffer().remaining();
+    }
+
+    @Override
+    public void close() {
+        try {
+            drain();
+        } finally {
+            if (sender != null) {
+                sender.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Loads the initial fully populated twins much faster than -p through the normal write path.
+
+Twin ids are strings, "V_" and a number, so in the _id index V_10 comes between V_1 and V_100. Loading
+0, 1, 2 ... inserts all over the index. Instead we walk the numbers in the order of their strings,
+working out the next one arithmetically rather than sorting anything, so every insert goes on the
+right hand end of its part of the index. That order is cut into blocks of --load-block twins, each a
+contiguous range of _id, and each thread gets a contiguous run of blocks.
+
+Batches are as big as the server will take in one message, from hello's maxMessageSizeBytes and
+maxWriteBatchSize, rather than -b, and go through a BulkFlusher so --inflight still overlaps them.
+Twins are encoded exactly as the strategy's own first write would store them.
+
+When a block has been written it is recorded in digitwin.loadprogress, and --resume true skips the
+database drop and every recorded block. A block that was part written is cleared with one ranged
+delete first. Against mongos, --presplit shards the collection on _id and splits it into that many
+chunks on block boundaries, spread over the shards, before loading.
+ */
+class BulkLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkLoader.class);
+    // Left out of each bulkWrite for the message header and the insert command around the documents
+    private static final int MESSAGE_HEADROOM = 64 * 1024;
+
+    // The numbers 0 .. n-1 in the order of their decimal strings
+    static class LexicalOrder {
+        private final long n;
+
+        LexicalOrder(long n) {
+            this.n = n;
+        }
+
+        // The number at this position, position 0 being 0 itself
+        long at(long position) {
+            if (position == 0) {
+                return 0;
+            }
+            // The standard walk down the prefix tree of 1 .. n-1, counting how many numbers each prefix covers
+            long k = position - 1;
+            long current = 1;
+            while (k > 0) {
+                long below = countWithPrefix(current);
+                if (below <= k) {
+                    k -= below;
+                    current++;
+                } else {
+                    k--;
+                    current *= 10;
+                }
+            }
+            return current;
+        }
+
+        private long countWithPrefix(long prefix) {
+            long count = 0;
+            long first = prefix;
+            long last = prefix + 1;
+            while (first < n) {
+                count += Math.min(n, last) - first;
+                first *= 10;
+                last *= 10;
+            }
+            return count;
+        }
+
+        // The number after this one, or -1 when there are no more
+        long next(long current) {
+            if (current == 0) {
+                return n > 1 ? 1 : -1;
+            }
+            if (current * 10 < n) {
+                return current * 10;
+            }
+            while (current % 10 == 9 || current + 1 >= n) {
+                current /= 10;
+                if (current == 0) {
+                    return -1;
+                }
+            }
+            return current + 1;
+        }
+    }
+
+    static long load(MongoClient mongoClient, CommandLineArgs cmdArgs) {
+        long devices = cmdArgs.getNumberOfDevices();
+        long blockSize = cmdArgs.getLoadBlock();
+        int blocks = (int) ((devices + blockSize - 1) / blockSize);
+        int threads = Math.min(cmdArgs.getNumberOfThreads(), blocks);
+        LexicalOrder order = new LexicalOrder(devices);
+        MongoDatabase database = mongoClient.getDatabase("digitwin");
+        MongoCollection<Document> progress = database.getCollection("loadprogress");
+
+        Document hello = mongoClient.getDatabase("admin").runCommand(new Document("hello", 1));
+        int maxOps = hello.getInteger("maxWriteBatchSize", 100000);
+        long maxBytes = hello.getInteger("maxMessageSizeBytes", 48000000) - MESSAGE_HEADROOM;
+        LOG.info("Loading " + devices + " twins in " + blocks + " blocks with " + threads + " threads, up to " +
+                maxOps + " ops or " + maxBytes + " bytes per bulk write");
+
+        Set<Integer> done = checkProgress(progress, cmdArgs, devices, blockSize);
+        if ("isdbgrid".equals(hello.getString("msg")) && cmdArgs.getPresplit() > 0 && done.isEmpty()) {
+            presplit(mongoClient, order, blocks, blockSize, cmdArgs.getPresplit());
+        }
+
+        AtomicLong loaded = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int threadId = t;
+            final int firstBlock = (int) ((long) blocks * t / threads);
+            final int endBlock = (int) ((long) blocks * (t + 1) / threads);
+            executor.submit(() -> {
+                MessageGenerator generator = new MessageGenerator(cmdArgs.getNumberOfDevices(), cmdArgs.getChanges(),
+                        cmdArgs.getTotalAttributes());
+                try (WriteStrategy strategy = MongoTwin.createStrategy(mongoClient, cmdArgs);
+                     BulkFlusher flusher = new BulkFlusher(strategy.writeCollection,
+                             WriteMetrics.forStrategy("BulkLoader"), null, RetryPolicy.from(cmdArgs), maxOps, maxBytes,
+                             cmdArgs.getMaxInFlight())) {
+                    for (int block = firstBlock; block < endBlock; block++) {
+                        if (done.contains(block)) {
+                            continue;
+                        }
+                        long start = block * blockSize;
+                        long end = Math.min(devices, start + blockSize);
+                        long deviceId = order.at(start);
+                        if (!done.isEmpty()) {
+                            // Resuming, so this block may have been part written
+                            strategy.writeCollection.deleteMany(blockFilter(order, start, end, devices));
+                        }
+                        for (long position = start; position < end; position++) {
+                            Map<String, Object> message = generator.getMessage(true, (int) deviceId);
+                            message.remove("isNew");
+                            BsonDocument twin = strategy.encodeNewTwin(message);
+                            if (twin != null) {
+                                flusher.add(new InsertOneModel<>(twin));
+                            }
+                            deviceId = order.next(deviceId);
+                        }
+                        long failedBefore = flusher.failedOps();
+                        flusher.drain();
+                        if (flusher.failedOps() > failedBefore) {
+                            // Left unrecorded so --resume loads it again
+                            LOG.error("Block " + block + " has twins that could not be written");
+                            continue;
+                        }
+                        progress.replaceOne(Filters.eq("_id", block), new Document("_id", block).append("twins", end - start),
+                                new ReplaceOptions().upsert(true));
+                        loaded.addAndGet(end - start);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Error in loader thread " + threadId + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+                LOG.info("Loader thread " + threadId + " completed");
+            });
+        }
+        MongoTwin.awaitCompletion(executor);
+        return loaded.get();
+    }
+
+    // The blocks already loaded, after checking they were loaded with the same settings
+    private static Set<Integer> checkProgress(MongoCollection<Document> progress, CommandLineArgs cmdArgs,
+                                              long devices, long blockSize) {
+        Document spec = new Document("_id", "spec").append("devices", devices).append("blockSize", blockSize)
+                .append("strategy", cmdArgs.getStrategy());
+        Set<Integer> done = new HashSet<>();
+        if (!cmdArgs.isResume()) {
+            progress.drop();
+            progress.insertOne(spec);
+            return done;
+        }
+        Document previous = progress.find(Filters.eq("_id", "spec")).first();
+        if (previous == null) {
+            progress.insertOne(spec);
+            return done;
+        }
+        if (!previous.equals(spec)) {
+            throw new IllegalArgumentException("Cannot resume, the previous load was " + previous.toJson());
+        }
+        for (Document block : progress.find(Filters.type("_id", "number"))) {
+            done.add(block.getInteger("_id"));
+        }
+        LOG.info("Resuming, " + done.size() + " blocks already loaded");
+        return done;
+    }
+
+    // Every _id from position start up to end in the order we load them
+    private static BsonDocument blockFilter(LexicalOrder order, long start, long end, long devices) {
+        String first = "V_" + order.at(start);
+        if (end == devices) {
+            return Filters.gte("_id", first).toBsonDocument();
+        }
+        return Filters.and(Filters.gte("_id", first), Filters.lt("_id", "V_" + order.at(end))).toBsonDocument();
+    }
+
+    /* Shard digitwin.twins on _id and split it into chunks at block boundaries, dealt round the shards, so
+    every thread is inserting into its own chunk from the start rather than waiting for the balancer. */
+    private static void presplit(MongoClient mongoClient, LexicalOrder order, int blocks, long blockSize, int chunks) {
+        MongoDatabase admin = mongoClient.getDatabase("admin");
+        String namespace = "digitwin.twins";
+        try {
+            admin.runCommand(new Document("enableSharding", "digitwin"));
+            admin.runCommand(new Document("shardCollection", namespace).append("key", new Document("_id", 1)));
+            List<String> shards = new ArrayList<>();
+            for (Document shard : admin.runCommand(new Document("listShards", 1)).getList("shards", Document.class)) {
+                shards.add(shard.getString("_id"));
+            }
+
+            int splits = Math.min(chunks, blocks) - 1;
+            for (int i = 1; i <= splits; i++) {
+                long block = (long) blocks * i / (splits + 1);
+                String splitId = "V_" + order.at(block * blockSize);
+                admin.runCommand(new Document("split", namespace).append("middle", new Document("_id", splitId)));
+                String shard = shards.get(i % shards.size());
+                try {
+                    admin.runCommand(new Document("moveChunk", namespace).append("find", new Document("_id", splitId))
+                            .append("to", shard));
+                } catch (MongoCommandException e) {
+                    // Already on that shard
+                    LOG.debug("moveChunk to " + shard + ": " + e.getErrorMessage());
+                }
+            }
+            LOG.info("Split " + namespace + " into " + (splits + 1) + " chunks over " + shards.size() + " shards");
+        } catch (MongoCommandException e) {
+            LOG.warn("Could not presplit " + namespace + ", loading without: " + e.getErrorMessage());
+        }
+    }
+}
@@ -3,7 +3,9 @@ package com.mongodb.examples.java.mongotwin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class CommandLineArgs {
+import java.util.List;
+
+public class CommandLineArgs implements Cloneable {
     private static final Logger LOG = LoggerFactory.getLogger(CommandLineArgs.class);
 
     private int numberOfThreads = 5;           // Default number of threads
@@ -13,6 +15,52 @@ public class CommandLineArgs {
     private String strategy = null;            // Strategy parameter (required)
     private int totalAttributes = 60;
     private int changes = 40;
+    private String keys = "uniform";           // How often each device sends, see KeyDistribution
+    private int batchSize = 100;               // Operations per bulkWrite
+    private long batchBytes = 0;               // Max encoded bytes per bulkWrite, 0 for no limit
+    private int maxInFlight = 0;               // Batches in flight per thread, 0 to send inline
+    private int retries = 8;                   // Times failed ops in a bulk write are retried before they are dropped
+    private long retryBackoffMs = 100;         // Backoff before the first retry, doubling each time
+    private int readBatchSize = 1;             // Messages per $in read in read-modify-write strategies
+    private int cacheSize = 0;                 // Twins cached per thread, 0 for no cache
+    private String cachePolicy = "lru";        // Twin cache eviction policy
+    private long cacheFlushMs = 1000;          // How often dirty cached twins are written back
+    private int virtualStreams = 0;            // Virtual threads, one per device stream, 0 to use platform threads
+    private int maxConcurrency = 100;          // Virtual threads allowed in the database at once
+    private int partitions = 0;                // Device partitions each with one writer, 0 for no routing
+    private String routing = "hash";           // How devices are assigned to partitions
+    private String updateShape = "perkey";     // Shape of the ServerSideStrategy update pipeline
+    private String layout = "flat";            // How attributes are nested in e
+    private int fanout = 16;                   // Most entries in any branch of a nested layout
+    private int watermarkMb = 0;               // Off heap MB of last sent tsCC per device attribute, 0 for off
+    private String blobFormat = "bson";        // How BlobStrategy serialises a twin before compressing it
+    private String blobCodec = "zlib";         // How BlobStrategy compresses it
+    private int segments = 8;                  // Compressed attribute segments per twin in SegmentedBlobStrategy
+    private int historyWindowSecs = 0;         // Time window per history bucket, 0 for no history
+    private int historyBucketSize = 200;       // Readings per history bucket
+    private String recordFile = null;          // Generate messages into this file instead of writing them
+    private String replayFile = null;          // Write the messages recorded in this file instead of generating
+    private int asyncInFlight = 0;             // Messages each thread keeps in flight on the async driver, 0 for blocking
+    private double rate = 0;                   // Target messages per second for an open loop run, 0 for closed loop
+    private long maxLingerMs = 10;             // With --rate, longest a partial batch waits to fill before it is sent
+    private long adaptiveBatchMs = 0;          // Target bulkWrite latency for adaptive batch sizing, 0 for fixed
+    private int maxBatchSize = 1000;           // Largest batch adaptive sizing will grow to
+    private boolean bulkLoad = false;          // Load fully populated twins with the bulk loader instead of -p messages
+    private boolean resume = false;            // Carry on an interrupted bulk load rather than starting again
+    private int loadBlock = 100000;            // Twins per resumable bulk load block
+    private int presplit = 0;                  // Chunks to split the twins into on a sharded cluster before loading, 0 for none
+    private String spillDir = null;            // Queue messages through memory mapped files here between producers and writers
+    private int spillWriters = 0;              // Threads writing from the spill queue, 0 for the same as -t
+    private int spillSegmentMb = 64;           // Size of each spill segment file
+    private int spillMaxMb = 4096;             // Most disk the spill queue uses before producers wait
+    private int ringSize = 0;                  // Slots in a ring between producers and writers, 0 for none
+    private int ringWriters = 0;               // Threads writing from the ring, 0 for the same as -t
+    private int ringClaim = 64;                // Most messages a thread puts in or takes from the ring at once
+    private String ringWait = "park";          // How ring threads wait: spin, yield or park
+    private String compare = null;             // Comma separated strategies to run one after another and compare
+    private String compareFile = "comparison.json"; // Where the comparison report is written
+    private int reportInterval = 10;           // Seconds between live metrics reports, 0 for none
+    private String metricsFile = null;         // Where to export latency distributions at the end
 
     // Parse command line arguments
     public static CommandLineArgs parse(String[] args) {
@@ -67,6 +115,284 @@ public class CommandLineArgs {
                     }
                     break;
 
+                case "--keys":
+                    if (i + 1 < args.length) {
+                        cmdArgs.keys = args[++i];
+                    }
+                    break;
+
+                case "--batch-size":
+                case "-b":
+                    if (i + 1 < args.length) {
+                        cmdArgs.batchSize = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--batch-bytes":
+                    if (i + 1 < args.length) {
+                        cmdArgs.batchBytes = Long.parseLong(args[++i]);
+                    }
+                    break;
+
+                case "--inflight":
+                    if (i + 1 < args.length) {
+                        cmdArgs.maxInFlight = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--retries":
+                    if (i + 1 < args.length) {
+                        cmdArgs.retries = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--retry-backoff-ms":
+                    if (i + 1 < args.length) {
+                        cmdArgs.retryBackoffMs = Long.parseLong(args[++i]);
+                    }
+                    break;
+
+                case "--read-batch":
+                    if (i + 1 < args.length) {
+                        cmdArgs.readBatchSize = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--cache-size":
+                    if (i + 1 < args.length) {
+                        cmdArgs.cacheSize = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--cache-policy":
+                    if (i + 1 < args.length) {
+                        cmdArgs.cachePolicy = args[++i];
+                    }
+                    break;
+
+                case "--cache-flush-ms":
+                    if (i + 1 < args.length) {
+                        cmdArgs.cacheFlushMs = Long.parseLong(args[++i]);
+                    }
+                    break;
+
+                case "--virtual":
+                case "-v":
+                    if (i + 1 < args.length) {
+                        cmdArgs.virtualStreams = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--max-concurrency":
+                    if (i + 1 < args.length) {
+                        cmdArgs.maxConcurrency = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--partitions":
+                    if (i + 1 < args.length) {
+                        cmdArgs.partitions = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--routing":
+                    if (i + 1 < args.length) {
+                        cmdArgs.routing = args[++i];
+                    }
+                    break;
+
+                case "--update-shape":
+                    if (i + 1 < args.length) {
+                        cmdArgs.updateShape = args[++i];
+                    }
+                    break;
+
+                case "--layout":
+                    if (i + 1 < args.length) {
+                        cmdArgs.layout = args[++i];
+                    }
+                    break;
+
+                case "--fanout":
+                    if (i + 1 < args.length) {
+                        cmdArgs.fanout = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--watermarks":
+                    if (i + 1 < args.length) {
+                        cmdArgs.watermarkMb = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--blob-format":
+                    if (i + 1 < args.length) {
+                        cmdArgs.blobFormat = args[++i];
+                    }
+                    break;
+
+                case "--blob-codec":
+                    if (i + 1 < args.length) {
+                        cmdArgs.blobCodec = args[++i];
+                    }
+                    break;
+
+                case "--segments":
+                    if (i + 1 < args.length) {
+                        cmdArgs.segments = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--history-window":
+                    if (i + 1 < args.length) {
+                        cmdArgs.historyWindowSecs = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--history-bucket":
+                    if (i + 1 < args.length) {
+                        cmdArgs.historyBucketSize = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--record":
+                    if (i + 1 < args.length) {
+                        cmdArgs.recordFile = args[++i];
+                    }
+                    break;
+
+                case "--replay":
+                    if (i + 1 < args.length) {
+                        cmdArgs.replayFile = args[++i];
+                    }
+                    break;
+
+                case "--async":
+                    if (i + 1 < args.length) {
+                        cmdArgs.asyncInFlight = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--rate":
+                    if (i + 1 < args.length) {
+                        cmdArgs.rate = Double.parseDouble(args[++i]);
+                    }
+                    break;
+
+                case "--max-linger":
+                    if (i + 1 < args.length) {
+                        cmdArgs.maxLingerMs = Long.parseLong(args[++i]);
+                    }
+                    break;
+
+                case "--adaptive-batch":
+                    if (i + 1 < args.length) {
+                        cmdArgs.adaptiveBatchMs = Long.parseLong(args[++i]);
+                    }
+                    break;
+
+                case "--max-batch-size":
+                    if (i + 1 < args.length) {
+                        cmdArgs.maxBatchSize = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--bulk-load":
+                    if (i + 1 < args.length) {
+                        cmdArgs.bulkLoad = Boolean.parseBoolean(args[++i]);
+                    }
+                    break;
+
+                case "--resume":
+                    if (i + 1 < args.length) {
+                        cmdArgs.resume = Boolean.parseBoolean(args[++i]);
+                    }
+                    break;
+
+                case "--load-block":
+                    if (i + 1 < args.length) {
+                        cmdArgs.loadBlock = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--presplit":
+                    if (i + 1 < args.length) {
+                        cmdArgs.presplit = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--spill":
+                    if (i + 1 < args.length) {
+                        cmdArgs.spillDir = args[++i];
+                    }
+                    break;
+
+                case "--spill-writers":
+                    if (i + 1 < args.length) {
+                        cmdArgs.spillWriters = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--spill-segment-mb":
+                    if (i + 1 < args.length) {
+                        cmdArgs.spillSegmentMb = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--spill-max-mb":
+                    if (i + 1 < args.length) {
+                        cmdArgs.spillMaxMb = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--ring":
+                    if (i + 1 < args.length) {
+                        cmdArgs.ringSize = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--ring-writers":
+                    if (i + 1 < args.length) {
+                        cmdArgs.ringWriters = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--ring-claim":
+                    if (i + 1 < args.length) {
+                        cmdArgs.ringClaim = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--ring-wait":
+                    if (i + 1 < args.length) {
+                        cmdArgs.ringWait = args[++i];
+                    }
+                    break;
+
+                case "--compare":
+                    if (i + 1 < args.length) {
+                        cmdArgs.compare = args[++i];
+                    }
+                    break;
+
+                case "--compare-out":
+                    if (i + 1 < args.length) {
+                        cmdArgs.compareFile = args[++i];
+                    }
+                    break;
+
+                case "--report-interval":
+                    if (i + 1 < args.length) {
+                        cmdArgs.reportInterval = Integer.parseInt(args[++i]);
+                    }
+                    break;
+
+                case "--metrics-out":
+                    if (i + 1 < args.length) {
+                        cmdArgs.metricsFile = args[++i];
+                    }
+                    break;
+
                 case "--help":
                 case "-h":
                     printUsage();
@@ -96,6 +422,53 @@ public class CommandLineArgs {
                 "60)");
         System.out.println("  --changes, -c <number>   Total number of attributes in a message (default: 40)");
         System.out.println("  --strategy, -s <string>    Strategy to use (required)");
+        System.out.println("  --keys <distribution>      Devices messages are from: uniform, zipf:<theta>, hotspot:<devices>:<share>");
+        System.out.println("                             or burst:<period secs>:<length secs>:<devices>:<share> (default: uniform)");
+        System.out.println("  --batch-size, -b <number>  Operations per bulk write (default: 100)");
+        System.out.println("  --batch-bytes <number>     Max encoded bytes per bulk write, 0 for no limit (default: 0)");
+        System.out.println("  --inflight <number>        Bulk writes in flight per thread, 0 to send inline (default: 0)");
+        System.out.println("  --retries <number>         Times ops that fail with a transient error are retried (default: 8)");
+        System.out.println("  --retry-backoff-ms <ms>    Most backoff before the first retry, doubling up to 10s, with jitter (default: 100)");
+        System.out.println("  --read-batch <number>      Messages per batched read in ReadReplace/Blob strategies (default: 1)");
+        System.out.println("  --cache-size <number>      Twins cached per thread in ReadReplace/Blob strategies, 0 for none (default: 0)");
+        System.out.println("  --cache-policy <lru|fifo>  Twin cache eviction policy (default: lru)");
+        System.out.println("  --cache-flush-ms <number>  How often dirty cached twins are written back (default: 1000)");
+        System.out.println("  --virtual, -v <number>     Run this many virtual thread device streams instead of -t threads (default: 0)");
+        System.out.println("  --max-concurrency <number> Virtual threads allowed in the database at once (default: 100)");
+        System.out.println("  --partitions <number>      Route devices to this many single-writer partitions, 0 for none (default: 0)");
+        System.out.println("  --routing <hash|chunk>     Partition by _id hash or by README chunk split (default: hash)");
+        System.out.println("  --update-shape <shape>     ServerSide pipeline: perkey, perattribute or merge (default: perkey)");
+        System.out.println("  --layout <layout>          Attributes in e: flat, prefix or hash (default: flat)");
+        System.out.println("  --fanout <number>          Most entries per branch for prefix and hash layouts, 2 to 36 (default: 16)");
+        System.out.println("  --watermarks <MB>          Off heap table so ServerSide leaves out stale attributes and unchanged keys, 0 for off (default: 0)");
+        System.out.println("  --blob-format <bson|json>  What BlobStrategy compresses (default: bson)");
+        System.out.println("  --blob-codec <codec>       BlobStrategy compression: zlib, snappy or zlib-dict (default: zlib)");
+        System.out.println("  --segments <number>        Compressed segments per twin in SegmentedBlobStrategy (default: 8)");
+        System.out.println("  --history-window <secs>    Also keep every reading in history buckets this long, 0 for none (default: 0)");
+        System.out.println("  --history-bucket <number>  Readings per history bucket (default: 200)");
+        System.out.println("  --record <file>            Record the generated messages to a file, nothing is written to MongoDB");
+        System.out.println("  --replay <file>            Write the messages from a recorded file with -t threads");
+        System.out.println("  --async <number>           Use the async driver with this many messages in flight per thread, 0 for blocking (default: 0)");
+        System.out.println("  --rate <msgs/sec>          Open loop at this total rate, e.g. devices / report interval (default: 0, flat out)");
+        System.out.println("  --max-linger <ms>          With --rate, send a partial batch once it has waited this long, 0 for never (default: 10)");
+        System.out.println("  --adaptive-batch <ms>      Tune batch size to keep bulk writes under this latency, 0 for fixed (default: 0)");
+        System.out.println("  --max-batch-size <number>  Largest batch adaptive sizing grows to (default: 1000)");
+        System.out.println("  --bulk-load <boolean>      Load -m fully populated twins in _id order in server sized batches (default: false)");
+        System.out.println("  --resume <boolean>         Carry on an interrupted bulk load, skipping the blocks it finished (default: false)");
+        System.out.println("  --load-block <number>      Twins per resumable bulk load block (default: 100000)");
+        System.out.println("  --presplit <number>        On mongos, shard and split the twins into this many chunks before a bulk load (default: 0)");
+        System.out.println("  --spill <dir>              -t threads generate into a memory mapped queue in dir, writers drain it");
+        System.out.println("  --spill-writers <number>   Threads writing from the spill queue, 0 for the same as -t (default: 0)");
+        System.out.println("  --spill-segment-mb <MB>    Size of each spill segment file, at most 1024 (default: 64)");
+        System.out.println("  --spill-max-mb <MB>        Most disk the spill queue uses before producers wait (default: 4096)");
+        System.out.println("  --ring <slots>             -t threads generate into a lock-free ring of this many slots, writers drain it, 0 for none (default: 0)");
+        System.out.println("  --ring-writers <number>    Threads writing from the ring, 0 for the same as -t (default: 0)");
+        System.out.println("  --ring-claim <number>      Most messages a thread puts in or takes from the ring at once (default: 64)");
+        System.out.println("  --ring-wait <wait>         How ring threads wait: spin, yield or park (default: park)");
+        System.out.println("  --compare <s1,s2,...>      Load -d devices and replay the same -m messages for each strategy, reporting bytes, oplog and storage");
+        System.out.println("  --compare-out <file>       Where to write the comparison as JSON (default: comparison.json)");
+        System.out.println("  --report-interval <secs>   Seconds between live throughput/latency reports, 0 for none (default: 10)");
+        System.out.println("  --metrics-out <file>       Write latency percentile distributions to this file at the end");
         System.out.println("  --help, -h                 Show this help message");
         System.out.println();
         System.out.println("Environment Variables:");
@@ -122,11 +495,161 @@ public class CommandLineArgs {
         if (totalMessages <= 0) {
             throw new IllegalArgumentException("Total messages must be positive");
         }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+        TwinCache.parsePolicy(cachePolicy);
+        if (readBatchSize <= 0) {
+            throw new IllegalArgumentException("Read batch size must be positive");
+        }
+        if (batchBytes < 0 || maxInFlight < 0) {
+            throw new IllegalArgumentException("Batch bytes and in flight batches cannot be negative");
+        }
+        if (retries < 0 || retryBackoffMs <= 0) {
+            throw new IllegalArgumentException("Retries cannot be negative and retry backoff must be positive");
+        }
 
+        if (spillDir != null) {
+            if (spillWriters < 0 || spillSegmentMb <= 0 || spillSegmentMb > 1024 || spillMaxMb < spillSegmentMb) {
+                throw new IllegalArgumentException("Spill writers cannot be negative, segments must be 1 to 1024MB and " +
+                        "the spill limit at least one segment");
+            }
+            if (virtualStreams > 0 || partitions > 0 || asyncInFlight > 0 || replayFile != null || recordFile != null ||
+                    bulkLoad || compare != null) {
+                throw new IllegalArgumentException("--spill runs -t producer threads and its own writers, it cannot be " +
+                        "combined with virtual threads, partitions, --async, record, replay, --bulk-load or --compare");
+            }
+            if (cacheSize > 0) {
+                throw new IllegalArgumentException("--spill acks messages once they are written, the twin cache holds " +
+                        "writes back");
+            }
+        }
+        if (ringSize != 0) {
+            if (ringSize < 2 || ringSize > 1 << 24 || ringWriters < 0 || ringClaim <= 0) {
+                throw new IllegalArgumentException("Ring slots must be 2 to 16777216, ring writers cannot be negative " +
+                        "and the ring claim must be positive");
+            }
+            if (!ringWait.toLowerCase().matches("spin|yield|park")) {
+                throw new IllegalArgumentException("Ring wait must be spin, yield or park");
+            }
+            if (virtualStreams > 0 || partitions > 0 || asyncInFlight > 0 || replayFile != null || recordFile != null ||
+                    bulkLoad || compare != null || spillDir != null) {
+                throw new IllegalArgumentException("--ring runs -t producer threads and its own writers, it cannot be " +
+                        "combined with virtual threads, partitions, --async, record, replay, --bulk-load, --compare " +
+                        "or --spill");
+            }
+        }
+        if (compare != null) {
+            for (String name : getCompareStrategies()) {
+                if (!List.of("ServerSideStrategy", "ReadReplaceStrategy", "BlobStrategy", "SegmentedBlobStrategy")
+                        .contains(name)) {
+                    throw new IllegalArgumentException("Cannot compare unknown strategy " + name);
+                }
+            }
+            if (populateDb || bulkLoad || recordFile != null || virtualStreams > 0 || partitions > 0 ||
+                    asyncInFlight > 0 || historyWindowSecs > 0) {
+                throw new IllegalArgumentException("--compare loads and replays for itself, it cannot be combined " +
+                        "with -p, --bulk-load, --record, virtual threads, partitions, --async or history");
+            }
+        }
+        if (bulkLoad) {
+            populateDb = true;
+            if (loadBlock <= 0 || presplit < 0) {
+                throw new IllegalArgumentException("Load block must be positive and presplit cannot be negative");
+            }
+            if (virtualStreams > 0 || partitions > 0 || replayFile != null || recordFile != null || asyncInFlight > 0 ||
+                    rate > 0) {
+                throw new IllegalArgumentException("--bulk-load runs its own threads, it cannot be combined with " +
+                        "virtual threads, partitions, record, replay, --async or --rate");
+            }
+        } else if (resume) {
+            throw new IllegalArgumentException("--resume is for --bulk-load");
+        }
         if (populateDb) {
             numberOfDevices = totalMessages;
         }
 
+        if (virtualStreams < 0 || maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Virtual streams cannot be negative and max concurrency must be positive");
+        }
+        if (virtualStreams > numberOfDevices) {
+            throw new IllegalArgumentException("Each virtual stream owns its own devices, there cannot be more streams (" +
+                    virtualStreams + ") than devices (" + numberOfDevices + ")");
+        }
+        if (!blobFormat.equalsIgnoreCase("bson") && !blobFormat.equalsIgnoreCase("json")) {
+            throw new IllegalArgumentException("Blob format must be bson or json");
+        }
+        if (!blobCodec.toLowerCase().matches("zlib|snappy|zlib-dict")) {
+            throw new IllegalArgumentException("Blob codec must be zlib, snappy or zlib-dict");
+        }
+        if (segments <= 0) {
+            throw new IllegalArgumentException("Segments must be positive");
+        }
+        if (historyWindowSecs < 0 || historyBucketSize <= 0) {
+            throw new IllegalArgumentException("History window cannot be negative and bucket size must be positive");
+        }
+        if (recordFile != null && replayFile != null) {
+            throw new IllegalArgumentException("Cannot record and replay at the same time");
+        }
+        if (replayFile != null && (virtualStreams > 0 || partitions > 0)) {
+            throw new IllegalArgumentException("--replay runs -t threads, not virtual threads or partitions");
+        }
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate cannot be negative");
+        }
+        if (maxLingerMs < 0) {
+            throw new IllegalArgumentException("Max linger cannot be negative");
+        }
+        if (rate > 0 && (virtualStreams > 0 || partitions > 0)) {
+            throw new IllegalArgumentException("--rate works with -t threads or --replay, not virtual threads or partitions");
+        }
+        if (asyncInFlight < 0) {
+            throw new IllegalArgumentException("Async in flight cannot be negative");
+        }
+        if (asyncInFlight > 0) {
+            if (virtualStreams > 0 || partitions > 0 || replayFile != null || rate > 0) {
+                throw new IllegalArgumentException("--async runs -t threads, not virtual threads, partitions, replay or --rate");
+            }
+            if (cacheSize > 0 || historyWindowSecs > 0) {
+                throw new IllegalArgumentException("--async does not support the twin cache or history");
+            }
+            if ("SegmentedBlobStrategy".equals(strategy)) {
+                throw new IllegalArgumentException("There is no async SegmentedBlobStrategy");
+            }
+        }
+        if (adaptiveBatchMs < 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Adaptive batch target cannot be negative and max batch size must be positive");
+        }
+        if (reportInterval < 0) {
+            throw new IllegalArgumentException("Report interval cannot be negative");
+        }
+        if (partitions < 0) {
+            throw new IllegalArgumentException("Partitions cannot be negative");
+        }
+        PartitionRouter.Scheme.valueOf(routing.toUpperCase());
+        KeyDistribution.parse(keys, 1);
+        UpdatePipelineBuilder.parseShape(updateShape);
+        AttributeLayout.parseKind(layout);
+        if (fanout < 2 || fanout > 36) {
+            throw new IllegalArgumentException("Fanout must be between 2 and 36");
+        }
+        if (watermarkMb < 0 || watermarkMb > 1024) {
+            throw new IllegalArgumentException("Watermarks must be between 0 and 1024 MB");
+        }
+        if (virtualStreams > 0) {
+            // The virtual threads are the concurrency, no background senders
+            maxInFlight = 0;
+        }
+        // Each writer caches its own copies, so two writers for one device write back stale twins over each other
+        int writers = ringSize > 0 ? getRingWriters() : numberOfThreads;
+        if (cacheSize > 0 && writers > 1 && virtualStreams == 0 && partitions == 0) {
+            throw new IllegalArgumentException("The twin cache is per thread, with " + writers + " writers it needs " +
+                    "--partitions or virtual threads so no device has two writers");
+        }
+
     }
 
     // Getters
@@ -150,6 +673,201 @@ public class CommandLineArgs {
         return strategy;
     }
 
+    public String getKeys() {
+        return keys;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    public int getReadBatchSize() {
+        return readBatchSize;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public String getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public long getCacheFlushMs() {
+        return cacheFlushMs;
+    }
+
+    public int getVirtualStreams() {
+        return virtualStreams;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    public String getUpdateShape() {
+        return updateShape;
+    }
+
+    public String getLayout() {
+        return layout;
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    public int getWatermarkMb() {
+        return watermarkMb;
+    }
+
+    public String getBlobFormat() {
+        return blobFormat;
+    }
+
+    public String getBlobCodec() {
+        return blobCodec;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public int getHistoryWindowSecs() {
+        return historyWindowSecs;
+    }
+
+    public int getHistoryBucketSize() {
+        return historyBucketSize;
+    }
+
+    public String getRecordFile() {
+        return recordFile;
+    }
+
+    public String getReplayFile() {
+        return replayFile;
+    }
+
+    public int getAsyncInFlight() {
+        return asyncInFlight;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public long getMaxLingerMs() {
+        return maxLingerMs;
+    }
+
+    public long getAdaptiveBatchMs() {
+        return adaptiveBatchMs;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public boolean isBulkLoad() {
+        return bulkLoad;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public int getLoadBlock() {
+        return loadBlock;
+    }
+
+    public int getPresplit() {
+        return presplit;
+    }
+
+    public String getSpillDir() {
+        return spillDir;
+    }
+
+    public int getSpillWriters() {
+        return spillWriters > 0 ? spillWriters : numberOfThreads;
+    }
+
+    public int getSpillSegmentMb() {
+        return spillSegmentMb;
+    }
+
+    public int getSpillMaxMb() {
+        return spillMaxMb;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    public int getRingWriters() {
+        return ringWriters > 0 ? ringWriters : numberOfThreads;
+    }
+
+    public int getRingClaim() {
+        return ringClaim;
+    }
+
+    public String getRingWait() {
+        return ringWait;
+    }
+
+    public List<String> getCompareStrategies() {
+        return compare == null ? null : List.of(compare.split("\\s*,\\s*"));
+    }
+
+    public String getCompareFile() {
+        return compareFile;
+    }
+
+    // The same arguments for another strategy
+    CommandLineArgs withStrategy(String strategy) {
+        try {
+            CommandLineArgs copy = (CommandLineArgs) clone();
+            copy.strategy = strategy;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getReportInterval() {
+        return reportInterval;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
     // Calculate messages per thread
     public int getMessagesPerThread() {
         return (int) Math.ceil((double) totalMessages / numberOfThreads);
@@ -0,0 +1,129 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Keeps every reading, not just the latest, in digitwin.history.
+
+A document per reading would mean an index entry per reading too, so instead readings are appended
+to bucket documents, one per device per time window (by tsCC), with up to a fixed number of readings
+each. The classic bucket pattern - an upsert that only matches a bucket with room left:
+
+    filter: { d: <device>, w: <window start>, c: { $lt: cap } }
+    update: { $push: { r: { $each: [ { n: nodeId, t: tsCC, v: value }, ... ] } }, $inc: { c: <n> } }
+
+When the bucket is full nothing matches and the upsert starts a new one for the same window. The cap
+is checked before the push so a bucket can go over it by one message's readings. Writes go through
+their own BulkFlusher, so batching and in flight settings are the same as for the twins, and their
+own WriteMetrics, so the report shows exactly what the history costs.
+ */
+class HistorySink implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistorySink.class);
+    private static final AtomicBoolean INDEXED = new AtomicBoolean();
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+    private final long windowMs;
+    private final int bucketCap;
+    private final BulkFlusher flusher;
+    private final BsonBytesWriter writer = new BsonBytesWriter();
+
+    HistorySink(MongoClient mongoClient, CommandLineArgs args) {
+        windowMs = args.getHistoryWindowSecs() * 1000L;
+        bucketCap = args.getHistoryBucketSize();
+        MongoCollection<BsonDocument> history = mongoClient.getDatabase("digitwin")
+                .getCollection("history", BsonDocument.class);
+        if (INDEXED.compareAndSet(false, true)) {
+            history.createIndex(Indexes.ascending("d", "w", "c"));
+        }
+        flusher = new BulkFlusher(history, WriteMetrics.forStrategy("HistorySink"),
+                WriteStrategy.adaptiveBatchSize("HistorySink", args), RetryPolicy.from(args), args.getBatchSize(),
+                args.getBatchBytes(), args.getMaxInFlight());
+    }
+
+    @SuppressWarnings("unchecked")
+    void record(Map<String, Object> message) {
+        // Readings grouped by the window they fall in, almost always just the one
+        Map<Long, List<Map<String, Object>>> windows = new LinkedHashMap<>();
+        for (Object fld : (List<?>) message.get("e")) {
+            Map<String, Object> reading = (Map<String, Object>) fld;
+            long ts = (Long) reading.get("tsCC");
+            windows.computeIfAbsent(ts - Math.floorMod(ts, windowMs), w -> new ArrayList<>()).add(reading);
+        }
+
+        Object device = message.get("_id");
+        for (Map.Entry<Long, List<Map<String, Object>>> window : windows.entrySet()) {
+            Date windowStart = new Date(window.getKey());
+            writer.reset();
+            writer.startDocument();
+            writer.writeValue("d", device);
+            writer.writeValue("w", windowStart);
+            writer.startDocument("c");
+            writer.writeValue("$lt", bucketCap);
+            writer.endDocument();
+            writer.endDocument();
+            RawBsonDocument filter = writer.toRawBsonDocument();
+
+            writer.reset();
+            writer.startDocument();
+            writer.startDocument("$push");
+            writer.startDocument("r");
+            writer.startArray("$each");
+            for (Map<String, Object> reading : window.getValue()) {
+                writer.startDocument();
+                writer.writeValue("n", reading.get("nodeId"));
+                writer.writeValue("t", reading.get("tsCC"));
+                writer.writeValue("v", reading.get("value"));
+                writer.endDocument();
+            }
+            writer.endArray();
+            writer.endDocument();
+            writer.endDocument();
+            writer.startDocument("$inc");
+            writer.writeValue("c", window.getValue().size());
+            writer.endDocument();
+            writer.endDocument();
+
+            flusher.add(new UpdateOneModel<>(filter, writer.toRawBsonDocument(), UPSERT));
+        }
+    }
+
+    void drain() {
+        flusher.drain();
+    }
+
+    @Override
+    public void close() {
+        flusher.close();
+    }
+
+    // How much space the twins and their history take, to compare with a run without history
+    static void logStorage(MongoClient mongoClient) {
+        MongoDatabase database = mongoClient.getDatabase("digitwin");
+        for (String name : List.of("twins", "history")) {
+            try {
+                Document stats = database.runCommand(new Document("collStats", name));
+                LOG.info(name + ": " + stats.get("count") + " docs, " + stats.get("size") + " bytes data, " +
+                        stats.get("storageSize") + " bytes on disk, " + stats.get("totalIndexSize") + " bytes of index");
+            } catch (RuntimeException e) {
+                LOG.warn("Could not get stats for " + name + ": " + e.getMessage());
+            }
+        }
+    }
+}
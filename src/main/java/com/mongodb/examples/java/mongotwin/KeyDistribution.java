@@ -0,0 +1,183 @@
+package com.mongodb.examples.java.mongotwin;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Which device each generated message is from.
+
+Real fleets are not uniform - some vehicles report far more than others, and traffic comes in waves.
+How much a twin cache helps, how many messages to one device land in the same batch and how often
+two writers hit the same twin all depend on that skew, so --keys picks one of:
+
+    uniform                              every device equally likely, what we always did
+    zipf:<theta>                         Zipfian, 0 < theta < 1, 0.99 is the usual "very skewed"
+    hotspot:<devices>:<share>            e.g. hotspot:0.01:0.8, 80% of messages from 1% of devices
+    burst:<period>:<length>:<devices>:<share>
+                                         e.g. burst:300:60:0.1:0.5, for the first 60 seconds of every
+                                         300, half the messages are from one 10% of devices (a
+                                         different 10% each time), otherwise uniform - rush hour
+
+Zipf uses the method from Gray et al, "Quickly Generating Billion-Record Synthetic Databases" as
+YCSB does, one pow per message once zeta(n) has been summed - that is done once per device count and
+shared. Ranks are scattered over the device ids by multiplying by a large number coprime with the
+device count, so the hot devices are not V_0, V_1 ... all next to each other in the _id index.
+Bursts are timed from when the class was loaded so every thread's bursts line up.
+ */
+abstract class KeyDistribution {
+
+    private static final long START_MS = System.currentTimeMillis();
+    private static final Map<String, Double> ZETAS = new ConcurrentHashMap<>();
+    private static final long SCATTER = 2654435761L;
+
+    final int devices;
+    private final long stride;
+
+    KeyDistribution(int devices) {
+        this.devices = devices;
+        long s = SCATTER % Math.max(devices, 1);
+        while (gcd(Math.max(s, 1), devices) != 1) {
+            s++;
+        }
+        this.stride = Math.max(s, 1);
+    }
+
+    // The next device, 0 to devices - 1
+    abstract int next(Random rng);
+
+    static KeyDistribution from(CommandLineArgs args) {
+        return parse(args.getKeys(), args.getNumberOfDevices());
+    }
+
+    static KeyDistribution parse(String spec, int devices) {
+        String[] parts = spec.toLowerCase().split(":");
+        try {
+            return switch (parts[0]) {
+                case "uniform" -> new Uniform(devices);
+                case "zipf" -> new Zipf(devices, Double.parseDouble(parts[1]));
+                case "hotspot" -> new Hotspot(devices, Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                case "burst" -> new Burst(devices, Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        Double.parseDouble(parts[3]), Double.parseDouble(parts[4]));
+                default -> throw new IllegalArgumentException("Unknown key distribution: " + spec);
+            };
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Cannot parse key distribution " + spec + ": " + e.getMessage());
+        }
+    }
+
+    // The rank'th most popular device
+    int scatter(long rank) {
+        return (int) (rank * stride % devices);
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    private static void checkFraction(String name, double value) {
+        if (!(value > 0 && value <= 1)) {
+            throw new IllegalArgumentException(name + " must be more than 0 and at most 1");
+        }
+    }
+
+    static class Uniform extends KeyDistribution {
+        Uniform(int devices) {
+            super(devices);
+        }
+
+        int next(Random rng) {
+            return rng.nextInt(devices);
+        }
+    }
+
+    static class Zipf extends KeyDistribution {
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+        private final double halfPowTheta;
+
+        Zipf(int devices, double theta) {
+            super(devices);
+            if (!(theta > 0 && theta < 1)) {
+                throw new IllegalArgumentException("Zipf theta must be between 0 and 1");
+            }
+            this.zetan = ZETAS.computeIfAbsent(devices + "/" + theta, k -> zeta(devices, theta));
+            double zeta2 = zeta(2, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / devices, 1 - theta)) / (1 - zeta2 / zetan);
+            this.halfPowTheta = 1 + Math.pow(0.5, theta);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        int next(Random rng) {
+            double u = rng.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < halfPowTheta) {
+                rank = 1;
+            } else {
+                rank = (long) (devices * Math.pow(eta * u - eta + 1, alpha));
+            }
+            return scatter(Math.min(rank, devices - 1));
+        }
+    }
+
+    static class Hotspot extends KeyDistribution {
+        private final int hotDevices;
+        private final double share;
+
+        Hotspot(int devices, double fraction, double share) {
+            super(devices);
+            checkFraction("Hotspot devices", fraction);
+            checkFraction("Hotspot share", share);
+            this.hotDevices = (int) Math.max(1, Math.min(devices, devices * fraction));
+            this.share = share;
+        }
+
+        int next(Random rng) {
+            if (hotDevices == devices || rng.nextDouble() < share) {
+                return scatter(rng.nextInt(hotDevices));
+            }
+            return scatter(hotDevices + rng.nextInt(devices - hotDevices));
+        }
+    }
+
+    static class Burst extends KeyDistribution {
+        private final long periodMs;
+        private final long lengthMs;
+        private final int groupDevices;
+        private final double share;
+
+        Burst(int devices, long periodSecs, long lengthSecs, double fraction, double share) {
+            super(devices);
+            if (periodSecs <= 0 || lengthSecs <= 0 || lengthSecs > periodSecs) {
+                throw new IllegalArgumentException("Burst period must be positive and length between 1 and the period");
+            }
+            checkFraction("Burst devices", fraction);
+            checkFraction("Burst share", share);
+            this.periodMs = periodSecs * 1000;
+            this.lengthMs = lengthSecs * 1000;
+            this.groupDevices = (int) Math.max(1, Math.min(devices, devices * fraction));
+            this.share = share;
+        }
+
+        int next(Random rng) {
+            long elapsed = System.currentTimeMillis() - START_MS;
+            if (elapsed % periodMs < lengthMs && rng.nextDouble() < share) {
+                // Each burst is the next group of devices round the fleet
+                long groupStart = elapsed / periodMs * groupDevices;
+                return scatter((groupStart + rng.nextInt(groupDevices)) % devices);
+            }
+            return rng.nextInt(devices);
+        }
+    }
+}
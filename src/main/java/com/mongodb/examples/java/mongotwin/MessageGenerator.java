@@ -4,7 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
 
 /* This class generates messages coming from real world things (or possibly software)
     that contain multiple updates each with it's own timestamp - they may overlap
@@ -17,25 +17,75 @@ public class MessageGenerator {
     final static int OUT_OF_ORDER_EVERY = 10000; // One in 10,000 messages is out of order
     private static final Logger LOG = LoggerFactory.getLogger(MessageGenerator.class);
     // Format is Type, Cardinality, Name
-    private final String[] topLevelFields = {
+    private static final String[] topLevelFields = {
             "brand,String,20", "country,String,100", "version,Integer,10", "tripDataReason,String,100",
             "actuation,String,5", "fleetId,String,10000", "fleetProviderId,String,1000"
     };
+    private static final String[] constFields = {"unit", "dataOwner", "textId", "picId", "actuation"};
+    private static final int CONST_FIELD_VALUES = 100;
+
+    /* Everything below is a pure function of a small seed so we work it out once and share it
+    between all the generators rather than splitting, formatting and building strings per message.
+    topLevelValues[i] holds every possible value of top level field i (null for Integer fields where
+    the value is just the seed). */
+    private static final String[] topLevelNames = new String[topLevelFields.length];
+    private static final int[] topLevelCardinality = new int[topLevelFields.length];
+    private static final String[][] topLevelValues = new String[topLevelFields.length][];
+    private static final String[] constFieldValues = new String[CONST_FIELD_VALUES];
+    private static final Map<Integer, String[]> nodeIdTables = new ConcurrentHashMap<>();
+
+    static {
+        TechnicalStringGenerator tableTsg = new TechnicalStringGenerator();
+        for (int i = 0; i < topLevelFields.length; i++) {
+            String[] parts = topLevelFields[i].split(",");
+            topLevelNames[i] = parts[0];
+            topLevelCardinality[i] = Integer.parseInt(parts[2]);
+            if (parts[1].equals("String")) {
+                topLevelValues[i] = new String[topLevelCardinality[i]];
+                for (int v = 0; v < topLevelCardinality[i]; v++) {
+                    topLevelValues[i][v] = tableTsg.generateString(v, TINY_STRING_LENGTH);
+                }
+            }
+        }
+        for (int v = 0; v < CONST_FIELD_VALUES; v++) {
+            constFieldValues[v] = tableTsg.generateString(v, SHORT_STRING_LENGTH);
+        }
+    }
+
     private final int nDevices;
+    private final KeyDistribution keys;
     int NUM_TOTAL_fld = 60;
     int NUM_fld_PER_MESSAGE = 50;
-    TechnicalStringGenerator tsg;
     Date streamStartTime = new Date();
     FastRCG rng = new FastRCG();
     Random realRNG = new Random();
+    private final String[] nodeIds;
+    // Scratch space for picking which attributes are in a message, reused between messages
+    private final boolean[] picked;
 
     MessageGenerator(int nDevices, int changes, int totalAttributes) {
+        this(nDevices, changes, totalAttributes, new KeyDistribution.Uniform(nDevices));
+    }
+
+    MessageGenerator(int nDevices, int changes, int totalAttributes, KeyDistribution keys) {
         this.nDevices = nDevices;
-        tsg = new TechnicalStringGenerator();
+        this.keys = keys;
         this.realRNG.setSeed(Thread.currentThread().getId());
         rng.setSeed(1); // Predictable and consistent results
         this.NUM_TOTAL_fld = totalAttributes;
         this.NUM_fld_PER_MESSAGE = changes;
+        this.nodeIds = nodeIdTable(totalAttributes);
+        this.picked = new boolean[totalAttributes];
+    }
+
+    static String[] nodeIdTable(int totalAttributes) {
+        return nodeIdTables.computeIfAbsent(totalAttributes, n -> {
+            String[] table = new String[n];
+            for (int fld = 0; fld < n; fld++) {
+                table[fld] = String.format("0x%010x", fld);
+            }
+            return table;
+        });
     }
 
     //Some handy Hex
@@ -49,30 +99,30 @@ public class MessageGenerator {
         return sb.toString();
     }
 
-    Map<String, Object> getField(int deviceId, Date now, int fld) {
-        Map<String, Object> field = new HashMap<>();
+    Map<String, Object> getField(int deviceId, long now, int fld) {
+        // Sized so the 19 entries never cause a rehash
+        Map<String, Object> field = new HashMap<>(32);
 
         //timestamps - change between every reading
 
-        field.put("nodeId", String.format("0x%010x", fld));
-        field.put("timestampCarSent", now.getTime());
-        field.put("timestampCarSentUTC", now.getTime());
+        field.put("nodeId", nodeIds[fld]);
+        field.put("timestampCarSent", now);
+        field.put("timestampCarSentUTC", now);
         // Recorded a little earlier than send
-        Date timeRecorded = new Date(now.getTime() - rng.nextInt(120000));
-        field.put("tsCC", timeRecorded.getTime());
-        field.put("tsCCUTC", timeRecorded.getTime());
+        long timeRecorded = now - rng.nextInt(120000);
+        field.put("tsCC", timeRecorded);
+        field.put("tsCCUTC", timeRecorded);
         // Also mileage - we can relate that to timestamp
         int initialMileage = rng.nextInt(deviceId, 100000);
 
-        int runningMins = (int) ((now.getTime() - streamStartTime.getTime()) / 60000);
-        int recordiMins = (int) ((timeRecorded.getTime() - streamStartTime.getTime()) / 60000);
+        int runningMins = (int) ((now - streamStartTime.getTime()) / 60000);
+        int recordiMins = (int) ((timeRecorded - streamStartTime.getTime()) / 60000);
         // Some sort of device counter independant of time - like a car odometer, changes between some readings
 
 
         field.put("mileageCarCaptured", initialMileage + recordiMins);
         field.put("mileageCarSent", initialMileage + runningMins);
 
-        String[] constFields = {"unit", "dataOwner", "textId", "picId", "actuation"};
         // Some things that dont change - but technically could ocattionally
         rng.setSeed(deviceId + fld);
         for (String cfname : constFields) {
@@ -80,8 +130,8 @@ public class MessageGenerator {
             if (rng.nextInt(4) == 0) {
                 field.put(cfname, null);
             } else {
-                int stringId = rng.nextInt(100);
-                field.put(cfname, tsg.generateString(stringId, SHORT_STRING_LENGTH));
+                int stringId = rng.nextInt(CONST_FIELD_VALUES);
+                field.put(cfname, constFieldValues[stringId]);
             }
 
         }
@@ -112,53 +162,52 @@ public class MessageGenerator {
     //Can use for data generation if we ask
 
     Map<String, Object> getMessage(boolean full, Integer deviceId) {
-        HashMap<String, Object> message = new HashMap<>();
+        HashMap<String, Object> message = new HashMap<>(16);
         if (deviceId == null) {
-            deviceId = realRNG.nextInt(nDevices);
+            deviceId = keys.next(realRNG);
         }
         message.put("isNew", full);
         message.put("_id", "V_" + deviceId);
-        Date now = new Date(); // Current Time
+        long now = System.currentTimeMillis(); // Current Time
         // Occasioanlly we get a message thats not from now, it's from a while ago
-        if (rng.nextInt((int) (System.currentTimeMillis() + deviceId), OUT_OF_ORDER_EVERY) == 0) {
-            now = new Date(now.getTime() - rng.nextInt(120000));
+        if (rng.nextInt((int) (now + deviceId), OUT_OF_ORDER_EVERY) == 0) {
+            now = now - rng.nextInt(120000);
         }
-        message.put("timestampReceived", now);
+        message.put("timestampReceived", new Date(now));
 
         // For now we can keep these constant, but code will work if we change them
         int tlc = 0;
-        for (String topLevelField : topLevelFields) {
-            String[] parts = topLevelField.split(",");
-            int cardinality = Integer.parseInt(parts[2]);
-            Object value = switch (parts[1]) {
-                case "String" -> tsg.generateString(rng.nextInt(deviceId + tlc++, cardinality), TINY_STRING_LENGTH);
-                case "Integer" -> rng.nextInt(deviceId + tlc++, cardinality);
-                default -> null;
-            };
-            message.put(parts[0], value);
-            List<Integer> fieldsToPopulate = new ArrayList<>();
-            List<Map<String, Object>> fld = new ArrayList<Map<String, Object>>();
-
-            if (!full) {
-                Set<Integer> fieldSubset = new HashSet();
-                //Pick a non duplicate subset - this may be inefficient - TODO
-                while (fieldSubset.size() < NUM_fld_PER_MESSAGE) {
-                    int fno = rng.nextInt(NUM_TOTAL_fld);
-                    if (!fieldSubset.contains(fno)) {
-                        fieldSubset.add(fno);
-                    }
+        for (int i = 0; i < topLevelNames.length; i++) {
+            int valueSeed = rng.nextInt(deviceId + tlc++, topLevelCardinality[i]);
+            Object value = topLevelValues[i] != null ? topLevelValues[i][valueSeed] : valueSeed;
+            message.put(topLevelNames[i], value);
+        }
+
+        int nFields = full ? NUM_TOTAL_fld : NUM_fld_PER_MESSAGE;
+        List<Map<String, Object>> fld = new ArrayList<>(nFields);
+
+        if (!full) {
+            //Pick a non duplicate subset, kept in nodeId order
+            int nPicked = 0;
+            while (nPicked < NUM_fld_PER_MESSAGE) {
+                int fno = rng.nextInt(NUM_TOTAL_fld);
+                if (!picked[fno]) {
+                    picked[fno] = true;
+                    nPicked++;
                 }
-                fieldsToPopulate = new ArrayList<>(fieldSubset);
-            } else {
-                fieldsToPopulate = IntStream.range(0, NUM_TOTAL_fld).boxed().toList();
             }
-
-            for (int f : fieldsToPopulate) {
+            for (int f = 0; f < NUM_TOTAL_fld; f++) {
+                if (picked[f]) {
+                    picked[f] = false;
+                    fld.add(getField(deviceId, now, f));
+                }
+            }
+        } else {
+            for (int f = 0; f < NUM_TOTAL_fld; f++) {
                 fld.add(getField(deviceId, now, f));
             }
-            message.put("e", fld);
-
         }
+        message.put("e", fld);
 
         return message;
     }
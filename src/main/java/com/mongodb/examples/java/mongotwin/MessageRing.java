@@ -0,0 +1,384 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.MongoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* Splits generating messages from writing them so each side can be scaled on its own and we can see
+which one is holding a run back.
+
+-t producer threads generate messages into a ring of preallocated slots and --ring-writers threads
+take them out and write them, each with its own strategy. There are no locks. Every slot has a
+sequence number: a producer claims a run of positions with one getAndAdd on the tail, waits for each
+slot's sequence to say the writer a lap behind has emptied it, fills it and publishes it by setting the
+sequence to position + 1. Writers claim a run of up to --ring-claim positions with a compareAndSet on
+the head, but only of positions a producer has already claimed so they never wait on a producer that
+doesn't exist, then copy the messages out and free the slots before writing, so slow writes don't
+hold slots. Claiming runs of positions rather than one at a time keeps the two counters from being
+the thing every thread fights over.
+
+How a thread waits when it can't go on is --ring-wait: spin burns a core but reacts fastest, yield
+gives the core up to other threads, park (the default) spins and yields briefly then sleeps 50us at a
+time. With more threads than cores use park.
+
+Every report interval, and for the whole run at the end, we log the rate in and out, how full the
+ring was (sampled every 100ms) and what share of their time producers spent waiting for a free slot
+and writers spent waiting for a message. Producers waiting means the writers - the database - are
+the limit, writers waiting means generating messages is.
+ */
+class MessageRing implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageRing.class);
+    private static final long PARK_NANOS = 50000;
+    private static final int SPINS = 100;
+    private static final long SAMPLE_MS = 100;
+    // How long take() waits for a message before returning none
+    private static final long IDLE_NANOS = 100000000;
+    // How much more one stage has to wait than the other before we say the other is the limit
+    private static final double CLEAR_LIMIT_PERCENT = 10;
+
+    enum Wait {
+        SPIN, YIELD, PARK;
+
+        // Called each time round a wait loop, tries counts from 0
+        void idle(int tries) {
+            if (this == SPIN || tries < SPINS) {
+                Thread.onSpinWait();
+            } else if (this == YIELD || tries < 2 * SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final Map<String, Object>[] messages;
+    private final long[] intended;
+    private final AtomicLongArray sequences;
+    // Next position a producer will claim, and the next a writer will
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final Wait wait;
+    private volatile boolean finished = false;
+    private volatile boolean aborted = false;
+
+    private final int producers;
+    private final int writers;
+    private final LongAdder produced = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder producerStallNanos = new LongAdder();
+    private final LongAdder writerWaitNanos = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private volatile long producersDoneNanos = 0;
+
+    // Only touched by the reporter thread, and by close() once it has stopped
+    private final ScheduledExecutorService scheduler;
+    private long depthSamples = 0;
+    private long depthTotal = 0;
+    private long depthMax = 0;
+    private long runDepthSamples = 0;
+    private long runDepthTotal = 0;
+    private long runDepthMax = 0;
+    private long lastProduced = 0;
+    private long lastWritten = 0;
+    private long lastProducerStall = 0;
+    private long lastWriterWait = 0;
+    private long lastReport = startNanos;
+
+    @SuppressWarnings("unchecked")
+    MessageRing(int slots, Wait wait, int producers, int writers, int reportIntervalSecs) {
+        this.capacity = Integer.highestOneBit(Math.max(2, slots - 1) << 1);
+        this.mask = capacity - 1;
+        this.messages = new Map[capacity];
+        this.intended = new long[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.wait = wait;
+        this.producers = producers;
+        this.writers = writers;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ring-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(this::sample, SAMPLE_MS, SAMPLE_MS, TimeUnit.MILLISECONDS);
+        if (reportIntervalSecs > 0) {
+            scheduler.scheduleAtFixedRate(this::report, reportIntervalSecs, reportIntervalSecs, TimeUnit.SECONDS);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    // Put the first n of batch in the ring, false if every writer has gone
+    boolean publish(Map<String, Object>[] batch, long[] intendedNanos, int n) {
+        long first = tail.getAndAdd(n);
+        for (int i = 0; i < n; i++) {
+            long position = first + i;
+            int index = (int) (position & mask);
+            if (sequences.getAcquire(index) != position && !await(index, position, producerStallNanos)) {
+                return false;
+            }
+            messages[index] = batch[i];
+            intended[index] = intendedNanos[i];
+            sequences.setRelease(index, position + 1);
+        }
+        produced.add(n);
+        return true;
+    }
+
+    // Take up to batch.length messages, 0 if none came for a while, -1 once the producers are finished and the ring is empty
+    int take(Map<String, Object>[] batch, long[] intendedNanos) {
+        long waitStart = 0;
+        int tries = 0;
+        while (true) {
+            long first = head.get();
+            long claimed = tail.get() - first;
+            if (claimed > 0) {
+                int n = (int) Math.min(Math.min(batch.length, capacity), claimed);
+                if (!head.compareAndSet(first, first + n)) {
+                    // Another writer got there first
+                    continue;
+                }
+                if (waitStart != 0) {
+                    writerWaitNanos.add(System.nanoTime() - waitStart);
+                }
+                for (int i = 0; i < n; i++) {
+                    long position = first + i;
+                    int index = (int) (position & mask);
+                    if (sequences.getAcquire(index) != position + 1) {
+                        // Claimed by a producer but not filled yet
+                        await(index, position + 1, writerWaitNanos);
+                    }
+                    batch[i] = messages[index];
+                    intendedNanos[i] = intended[index];
+                    messages[index] = null;
+                    sequences.setRelease(index, position + capacity);
+                }
+                written.add(n);
+                return n;
+            }
+            // Producers set finished after their last publish, so the tail read after it is final
+            if (finished && head.get() >= tail.get()) {
+                if (waitStart != 0) {
+                    writerWaitNanos.add(System.nanoTime() - waitStart);
+                }
+                return -1;
+            }
+            if (waitStart == 0) {
+                waitStart = System.nanoTime();
+            } else if ((tries & 0xff) == 0 && System.nanoTime() - waitStart > IDLE_NANOS) {
+                writerWaitNanos.add(System.nanoTime() - waitStart);
+                return 0;
+            }
+            wait.idle(tries++);
+        }
+    }
+
+    // Wait for a slot's sequence to reach expected, adding the time to stall; false if aborted meanwhile
+    private boolean await(int index, long expected, LongAdder stall) {
+        long start = System.nanoTime();
+        int tries = 0;
+        boolean reached = true;
+        while (sequences.getAcquire(index) != expected) {
+            if (aborted) {
+                reached = false;
+                break;
+            }
+            wait.idle(tries++);
+        }
+        stall.add(System.nanoTime() - start);
+        return reached;
+    }
+
+    // The producers are done, writers stop once they have taken what is left
+    void finish() {
+        producersDoneNanos = System.nanoTime();
+        finished = true;
+    }
+
+    // The writers are gone, stop producers waiting for space
+    void abort() {
+        aborted = true;
+    }
+
+    long writtenMessages() {
+        return written.sum();
+    }
+
+    private synchronized void sample() {
+        long depth = Math.max(0, Math.min(capacity, tail.get() - head.get()));
+        depthSamples++;
+        depthTotal += depth;
+        depthMax = Math.max(depthMax, depth);
+        runDepthSamples++;
+        runDepthTotal += depth;
+        runDepthMax = Math.max(runDepthMax, depth);
+    }
+
+    // Rates, ring depth and each stage's waiting since the last report
+    private synchronized void report() {
+        long now = System.nanoTime();
+        long nanos = Math.max(1, now - lastReport);
+        double seconds = nanos / 1e9;
+        long nowProduced = produced.sum();
+        long nowWritten = written.sum();
+        long nowProducerStall = producerStallNanos.sum();
+        long nowWriterWait = writerWaitNanos.sum();
+        LOG.info(String.format("Ring: %.0f msgs/s in, %.0f msgs/s out, depth avg %d max %d of %d, " +
+                        "producers stalled %.1f%%, writers waited %.1f%%",
+                (nowProduced - lastProduced) / seconds, (nowWritten - lastWritten) / seconds,
+                depthSamples > 0 ? depthTotal / depthSamples : 0, depthMax, capacity,
+                percent(nowProducerStall - lastProducerStall, (double) producers * nanos),
+                percent(nowWriterWait - lastWriterWait, (double) writers * nanos)));
+        lastProduced = nowProduced;
+        lastWritten = nowWritten;
+        lastProducerStall = nowProducerStall;
+        lastWriterWait = nowWriterWait;
+        lastReport = now;
+        depthSamples = 0;
+        depthTotal = 0;
+        depthMax = 0;
+    }
+
+    private static double percent(long part, double whole) {
+        return Math.min(100, 100.0 * part / Math.max(1, whole));
+    }
+
+    // The whole run, each stage's waiting as a share of the time that stage was running
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted waiting for the ring reporter");
+        }
+        report();
+        long end = System.nanoTime();
+        long producerNanos = (producersDoneNanos > 0 ? producersDoneNanos : end) - startNanos;
+        double producerStall = percent(producerStallNanos.sum(), (double) producers * producerNanos);
+        double writerWait = percent(writerWaitNanos.sum(), (double) writers * (end - startNanos));
+        LOG.info(String.format("Ring: %d messages through %d slots, depth avg %d max %d, producers stalled %.1f%% " +
+                        "of %dms, writers waited %.1f%% of %dms",
+                written.sum(), capacity, runDepthSamples > 0 ? runDepthTotal / runDepthSamples : 0, runDepthMax,
+                producerStall, producerNanos / 1000000, writerWait, (end - startNanos) / 1000000));
+        if (Math.abs(producerStall - writerWait) < CLEAR_LIMIT_PERCENT) {
+            LOG.info("Ring: producers and writers waited about as much as each other, neither was clearly the limit");
+        } else if (producerStall > writerWait) {
+            LOG.info("Ring: the writers (the database) were the limit - more producers won't help, more writers might");
+        } else {
+            LOG.info("Ring: the producers (generating messages) were the limit - more writers won't help, more producers might");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] newBatch(int size) {
+        return new Map[size];
+    }
+
+    // Producers generate and publish, writers take and write, each with its own strategy
+    static long run(MongoClient mongoClient, CommandLineArgs cmdArgs) {
+        int producers = cmdArgs.getNumberOfThreads();
+        int writers = cmdArgs.getRingWriters();
+        int messagesPerThread = cmdArgs.getMessagesPerThread();
+        boolean populateDb = cmdArgs.isPopulateDb();
+        boolean paced = cmdArgs.getRate() > 0;
+        Wait wait = Wait.valueOf(cmdArgs.getRingWait().toUpperCase());
+        if (wait == Wait.SPIN && producers + writers > Runtime.getRuntime().availableProcessors()) {
+            LOG.warn("Spinning " + (producers + writers) + " ring threads on " +
+                    Runtime.getRuntime().availableProcessors() + " cores, waiting threads will hold up the ones they wait for");
+        }
+
+        try (MessageRing ring = new MessageRing(cmdArgs.getRingSize(), wait, producers, writers,
+                cmdArgs.getReportInterval())) {
+            int writerClaim = Math.min(cmdArgs.getRingClaim(), ring.capacity());
+            // Paced messages are published one at a time, holding them back for a batch would make them late
+            int producerClaim = paced ? 1 : writerClaim;
+            LOG.info("Starting " + producers + " producers, each generating " + messagesPerThread + " messages, and " +
+                    writers + " writers through a ring of " + ring.capacity() + " slots");
+
+            AtomicInteger liveWriters = new AtomicInteger(writers);
+            ExecutorService writerPool = Executors.newFixedThreadPool(writers);
+            for (int i = 0; i < writers; i++) {
+                final int writerId = i;
+                writerPool.submit(() -> {
+                    Map<String, Object>[] batch = newBatch(writerClaim);
+                    long[] intendedNanos = new long[writerClaim];
+                    try (WriteStrategy strategy = MongoTwin.createStrategy(mongoClient, cmdArgs)) {
+                        int n;
+                        while ((n = ring.take(batch, intendedNanos)) >= 0) {
+                            if (n == 0) {
+                                strategy.idle();
+                            }
+                            for (int m = 0; m < n; m++) {
+                                strategy.ProcessMessage(batch[m], paced ? intendedNanos[m] : 0);
+                                batch[m] = null;
+                            }
+                        }
+                    } catch (Exception e) {
+                        LOG.error("Error in ring writer " + writerId + ": " + e.getMessage());
+                        e.printStackTrace();
+                    } finally {
+                        if (liveWriters.decrementAndGet() == 0) {
+                            ring.abort();
+                        }
+                    }
+                });
+            }
+
+            long produceStart = System.nanoTime();
+            ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+            for (int i = 0; i < producers; i++) {
+                final int threadId = i;
+                producerPool.submit(() -> {
+                    MessageGenerator generator = new MessageGenerator(cmdArgs.getNumberOfDevices(), cmdArgs.getChanges(),
+                            cmdArgs.getTotalAttributes(), KeyDistribution.from(cmdArgs));
+                    Pacer pacer = paced ? Pacer.forThread(cmdArgs.getRate(), producers, threadId, produceStart) : null;
+                    Map<String, Object>[] batch = newBatch(producerClaim);
+                    long[] intendedNanos = new long[producerClaim];
+                    int n = 0;
+                    for (int j = 0; j < messagesPerThread; j++) {
+                        if (pacer != null) {
+                            intendedNanos[n] = pacer.awaitNext();
+                        }
+                        batch[n++] = populateDb ?
+                                generator.getMessage(true, threadId * messagesPerThread + j) : generator.getMessage();
+                        if (n == producerClaim || j == messagesPerThread - 1) {
+                            if (!ring.publish(batch, intendedNanos, n)) {
+                                LOG.error("Producer " + threadId + " stopping, there are no writers left");
+                                return;
+                            }
+                            n = 0;
+                        }
+                    }
+                    if (pacer != null) {
+                        MongoTwin.logBehindSchedule("Producer " + threadId, pacer);
+                    }
+                });
+            }
+            MongoTwin.awaitCompletion(producerPool);
+            LOG.info("Producers finished in " + (System.nanoTime() - produceStart) / 1000000 + "ms");
+            ring.finish();
+            MongoTwin.awaitCompletion(writerPool);
+            return ring.writtenMessages();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/* Logs what every strategy's WriteMetrics saw in the last interval while the run is going, then
+the whole run percentiles at the end. If given a file the full percentile distributions are written
+there too so runs can be compared or plotted afterwards.
+ */
+class MetricsReporter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsReporter.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final String exportFile;
+    private long lastReport = System.nanoTime();
+
+    MetricsReporter(int intervalSeconds, String exportFile) {
+        this.exportFile = exportFile;
+        if (intervalSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-reporter");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    private synchronized void report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(0.001, (now - lastReport) / 1e9);
+        lastReport = now;
+        for (WriteMetrics metrics : WriteMetrics.all()) {
+            LOG.info(metrics.intervalReport(seconds));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted waiting for the metrics reporter");
+            }
+        }
+        // Picks up whatever was recorded since the last report
+        report();
+        for (WriteMetrics metrics : WriteMetrics.all()) {
+            LOG.info(metrics.summary());
+        }
+
+        if (exportFile != null) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(exportFile))) {
+                for (WriteMetrics metrics : WriteMetrics.all()) {
+                    out.println(metrics.summary());
+                    out.println();
+                    metrics.exportDistributions(out);
+                }
+                LOG.info("Metrics written to " + exportFile);
+            } catch (IOException e) {
+                LOG.error("Could not write metrics to " + exportFile + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -5,11 +5,17 @@ import com.mongodb.client.MongoClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MongoTwin {
 
@@ -37,25 +43,145 @@ public class MongoTwin {
 
         LOG.info("  Populate DB: " + cmdArgs.isPopulateDb());
         LOG.info("  Strategy: " + cmdArgs.getStrategy());
+        if (!cmdArgs.getKeys().equalsIgnoreCase("uniform") && !cmdArgs.isPopulateDb()) {
+            LOG.info("  Device Keys: " + cmdArgs.getKeys());
+        }
+        if (!cmdArgs.getLayout().equalsIgnoreCase("flat")) {
+            LOG.info("  Attribute Layout: " + cmdArgs.getLayout() + ", fanout " + cmdArgs.getFanout() + ", " +
+                    AttributeLayout.from(cmdArgs).depth + " levels of branches");
+        }
+        if ("ServerSideStrategy".equals(cmdArgs.getStrategy())) {
+            LOG.info("  Update Shape: " + cmdArgs.getUpdateShape());
+            if (cmdArgs.getWatermarkMb() > 0) {
+                LOG.info("  Attribute Watermarks: " + cmdArgs.getWatermarkMb() + "MB");
+            }
+        }
+        if ("SegmentedBlobStrategy".equals(cmdArgs.getStrategy())) {
+            LOG.info("  Segments: " + cmdArgs.getSegments() + " compressed with " + cmdArgs.getBlobCodec());
+        }
+        if (cmdArgs.getPartitions() > 0) {
+            LOG.info("  Partitions: " + cmdArgs.getPartitions() + " routed by " + cmdArgs.getRouting());
+        }
+        if (cmdArgs.getReplayFile() != null) {
+            LOG.info("  Replaying: " + cmdArgs.getReplayFile());
+        }
+        if (cmdArgs.getAsyncInFlight() > 0) {
+            LOG.info("  Async: " + cmdArgs.getAsyncInFlight() + " messages in flight per thread");
+        }
+        if (cmdArgs.getSpillDir() != null) {
+            LOG.info("  Spill Queue: " + cmdArgs.getSpillDir() + ", " + cmdArgs.getSpillWriters() + " writers, " +
+                    cmdArgs.getSpillSegmentMb() + "MB segments, up to " + cmdArgs.getSpillMaxMb() + "MB");
+        }
+        if (cmdArgs.getRingSize() > 0) {
+            LOG.info("  Ring: " + cmdArgs.getRingSize() + " slots, " + cmdArgs.getRingWriters() + " writers, claiming " +
+                    cmdArgs.getRingClaim() + " at a time, " + cmdArgs.getRingWait() + " when waiting");
+        }
+        if (cmdArgs.getCompareStrategies() != null) {
+            LOG.info("  Comparing: " + String.join(", ", cmdArgs.getCompareStrategies()) + ", report to " +
+                    cmdArgs.getCompareFile());
+        }
+        if (cmdArgs.isBulkLoad()) {
+            LOG.info("  Bulk Load: blocks of " + cmdArgs.getLoadBlock() + " twins" +
+                    (cmdArgs.isResume() ? ", resuming" : "") +
+                    (cmdArgs.getPresplit() > 0 ? ", presplit into " + cmdArgs.getPresplit() + " chunks" : ""));
+        }
+        if (cmdArgs.getRate() > 0) {
+            LOG.info("  Open loop at " + cmdArgs.getRate() + " messages/s");
+        }
+        if (cmdArgs.getVirtualStreams() > 0) {
+            LOG.info("  Virtual Thread Streams: " + cmdArgs.getVirtualStreams() + " (max concurrency " +
+                    cmdArgs.getMaxConcurrency() + ")");
+        }
+        LOG.info("  Batch Size: " + cmdArgs.getBatchSize() + " ops / " + cmdArgs.getBatchBytes() + " bytes");
+        if (cmdArgs.getAdaptiveBatchMs() > 0) {
+            LOG.info("  Adaptive Batch Size: up to " + cmdArgs.getMaxBatchSize() + " ops, target " +
+                    cmdArgs.getAdaptiveBatchMs() + "ms per bulk write");
+        }
+        LOG.info("  Batches In Flight: " + cmdArgs.getMaxInFlight());
+        LOG.info("  Retries: " + cmdArgs.getRetries() + ", backoff from " + cmdArgs.getRetryBackoffMs() + "ms");
+        LOG.info("  Read Batch Size: " + cmdArgs.getReadBatchSize());
+        if (cmdArgs.getCacheSize() > 0) {
+            LOG.info("  Twin Cache: " + cmdArgs.getCacheSize() + " per thread, " + cmdArgs.getCachePolicy() +
+                    ", flushed every " + cmdArgs.getCacheFlushMs() + "ms");
+        }
+        if (cmdArgs.getHistoryWindowSecs() > 0) {
+            LOG.info("  History: " + cmdArgs.getHistoryWindowSecs() + "s windows, " + cmdArgs.getHistoryBucketSize() +
+                    " readings per bucket");
+        }
         LOG.info("  MongoDB URI: " + mongoUri);
 
-        // Configuration
-        int numberOfThreads = cmdArgs.getNumberOfThreads();
-        int messagesPerThread = cmdArgs.getMessagesPerThread();
+        if (cmdArgs.getRecordFile() != null) {
+            Date recordStart = new Date();
+            try {
+                long recorded = StreamFile.record(cmdArgs);
+                LOG.info("Took " + (new Date().getTime() - recordStart.getTime()) + "ms to record " + recorded +
+                        " messages");
+            } catch (IOException e) {
+                LOG.error("Recording failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
 
         MongoClient singletonClient = MongoClients.create(mongoUri);
 
-        if (cmdArgs.isPopulateDb()) {
+        if (cmdArgs.isPopulateDb() && !cmdArgs.isResume()) {
             LOG.info("Dropping existing database");
             singletonClient.getDatabase("digitwin").drop();
         }
 
+        Date startTime = new Date();
+        long processed;
+        try (MetricsReporter reporter = new MetricsReporter(cmdArgs.getReportInterval(), cmdArgs.getMetricsFile())) {
+            if (cmdArgs.getCompareStrategies() != null) {
+                processed = StrategyComparison.run(singletonClient, mongoUri, cmdArgs);
+            } else if (cmdArgs.getSpillDir() != null) {
+                processed = runSpilled(singletonClient, cmdArgs);
+            } else if (cmdArgs.getRingSize() > 0) {
+                processed = MessageRing.run(singletonClient, cmdArgs);
+            } else if (cmdArgs.isBulkLoad()) {
+                processed = BulkLoader.load(singletonClient, cmdArgs);
+            } else if (cmdArgs.getReplayFile() != null) {
+                processed = StreamFile.replay(singletonClient, cmdArgs);
+            } else if (cmdArgs.getAsyncInFlight() > 0) {
+                processed = runAsync(singletonClient, mongoUri, cmdArgs);
+            } else if (cmdArgs.getVirtualStreams() > 0) {
+                processed = runVirtualThreads(singletonClient, cmdArgs);
+            } else if (cmdArgs.getPartitions() > 0) {
+                processed = PartitionRouter.run(singletonClient, cmdArgs);
+            } else {
+                processed = runPlatformThreads(singletonClient, cmdArgs);
+            }
+
+            LOG.info("All threads completed");
+            Date endTime = new Date();
+            LOG.info("Took " + (endTime.getTime() - startTime.getTime()) + "ms to process " + processed + " messages");
+        } catch (IOException e) {
+            LOG.error("Replay failed: " + e.getMessage());
+            System.exit(1);
+        }
+        if (cmdArgs.getCacheSize() > 0) {
+            TwinCache.logStats();
+        }
+        if (cmdArgs.getWatermarkMb() > 0) {
+            AttributeWatermarks.logStats();
+        }
+        if (cmdArgs.getHistoryWindowSecs() > 0) {
+            HistorySink.logStorage(singletonClient);
+        }
+    }
+
+    // One long-lived platform thread per worker, each generating and writing its share of the messages
+    static long runPlatformThreads(MongoClient mongoClient, CommandLineArgs cmdArgs) {
+        int numberOfThreads = cmdArgs.getNumberOfThreads();
+        int messagesPerThread = cmdArgs.getMessagesPerThread();
+
         LOG.info("Starting " + numberOfThreads + " threads, each processing " + messagesPerThread + " messages");
 
         // Create thread pool
         ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
         boolean populateDb = cmdArgs.isPopulateDb();
-        Date startTime = new Date();
+        long scheduleStart = System.nanoTime();
 
         // Create and submit worker threads
         for (int i = 0; i < numberOfThreads; i++) {
@@ -63,11 +189,15 @@ public class MongoTwin {
             executor.submit(() -> {
                 //Generator and strategy per thread
                 MessageGenerator generator = new MessageGenerator(cmdArgs.getNumberOfDevices(), cmdArgs.getChanges(),
-                        cmdArgs.getTotalAttributes());
+                        cmdArgs.getTotalAttributes(), KeyDistribution.from(cmdArgs));
 
                 LOG.info("Thread {} started", threadId + 1);
 
-                try (WriteStrategy strategy = createStrategy(singletonClient, cmdArgs.getStrategy())) {
+                // Open loop if there is a target rate, otherwise as fast as we can
+                Pacer pacer = cmdArgs.getRate() > 0 ?
+                        Pacer.forThread(cmdArgs.getRate(), numberOfThreads, threadId, scheduleStart) : null;
+
+                try (WriteStrategy strategy = createStrategy(mongoClient, cmdArgs)) {
                     try {
                         for (int j = 0; j < messagesPerThread; j++) {
                             // Generate message
@@ -82,7 +212,14 @@ public class MongoTwin {
                             }
 
                             // Write the message using strategy
-                            strategy.WriteMessage(message);
+                            if (pacer != null) {
+                                strategy.ProcessMessage(message, pacer.awaitNext());
+                            } else {
+                                strategy.ProcessMessage(message);
+                            }
+                        }
+                        if (pacer != null) {
+                            logBehindSchedule("Thread " + threadId, pacer);
                         }
                     } catch (Exception e) {
                         LOG.error("Error in thread " + threadId + ": " + e.getMessage());
@@ -91,15 +228,228 @@ public class MongoTwin {
 
                     }
                 } catch (Exception e) {
-                    LOG.error("Error {}", e.getMessage());
-                    System.exit(1);
-
+                    // Closing sends the last batch, if that fails only this thread's tail is lost
+                    LOG.error("Error closing thread " + threadId + ": " + e.getMessage());
+                    e.printStackTrace();
                 }
                 LOG.info("Thread " + threadId + " completed");
             });
 
         }
 
+        awaitCompletion(executor);
+        return (long) numberOfThreads * messagesPerThread;
+    }
+
+    /* -t producer threads generate messages into a SpillQueue as fast as they can (or at --rate) and
+    --spill-writers threads take them off and write them, each with its own strategy. A writer claims
+    as many messages as its flusher can have in flight, writes them, waits for them to be acknowledged
+    and acks the claim, so what the queue has committed is always in the database. The queue reports
+    how fast messages go in and are drained and how far behind the writers are.
+     */
+    static long runSpilled(MongoClient mongoClient, CommandLineArgs cmdArgs) throws IOException {
+        int producers = cmdArgs.getNumberOfThreads();
+        int writers = cmdArgs.getSpillWriters();
+        int messagesPerThread = cmdArgs.getMessagesPerThread();
+        int claimSize = cmdArgs.getBatchSize() * Math.max(1, cmdArgs.getMaxInFlight());
+        boolean populateDb = cmdArgs.isPopulateDb();
+
+        try (SpillQueue queue = new SpillQueue(Path.of(cmdArgs.getSpillDir()), cmdArgs.getSpillSegmentMb() << 20,
+                (long) cmdArgs.getSpillMaxMb() << 20, cmdArgs.getReportInterval())) {
+            LOG.info("Starting " + producers + " producers, each generating " + messagesPerThread + " messages, and " +
+                    writers + " spill writers");
+            AtomicInteger liveWriters = new AtomicInteger(writers);
+            ExecutorService writerPool = Executors.newFixedThreadPool(writers);
+            for (int i = 0; i < writers; i++) {
+                final int writerId = i;
+                writerPool.submit(() -> {
+                    try (WriteStrategy strategy = createStrategy(mongoClient, cmdArgs)) {
+                        SpillQueue.Claim claim;
+                        while ((claim = queue.claim(claimSize)) != null) {
+                            long failedBefore = strategy.failedOps();
+                            for (ByteBuffer bson : claim.messages) {
+                                strategy.ProcessMessage(StreamFile.decode(bson));
+                            }
+                            strategy.drain();
+                            long failed = strategy.failedOps() - failedBefore;
+                            if (failed > 0) {
+                                throw new IllegalStateException(failed + " writes were dropped, leaving " +
+                                        claim.messages.size() + " messages in the spill queue");
+                            }
+                            queue.ack(claim);
+                        }
+                    } catch (Exception e) {
+                        // Its unacked claim stays in the queue for the next run, and as nothing after it can be
+                        // committed the segments would never free up, so stop the producers too
+                        LOG.error("Error in spill writer " + writerId + ": " + e.getMessage());
+                        e.printStackTrace();
+                        queue.abort();
+                    } finally {
+                        if (liveWriters.decrementAndGet() == 0) {
+                            queue.abort();
+                        }
+                    }
+                });
+            }
+
+            long produceStart = System.nanoTime();
+            ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+            for (int i = 0; i < producers; i++) {
+                final int threadId = i;
+                producerPool.submit(() -> {
+                    MessageGenerator generator = new MessageGenerator(cmdArgs.getNumberOfDevices(), cmdArgs.getChanges(),
+                            cmdArgs.getTotalAttributes(), KeyDistribution.from(cmdArgs));
+                    Pacer pacer = cmdArgs.getRate() > 0 ?
+                            Pacer.forThread(cmdArgs.getRate(), producers, threadId, produceStart) : null;
+                    try {
+                        for (int j = 0; j < messagesPerThread; j++) {
+                            if (pacer != null) {
+                                pacer.awaitNext();
+                            }
+                            Map<String, Object> message = populateDb ?
+                                    generator.getMessage(true, threadId * messagesPerThread + j) : generator.getMessage();
+                            queue.append(TwinCodec.toRawBson(message).getByteBuffer().asNIO());
+                        }
+                        if (pacer != null) {
+                            logBehindSchedule("Producer " + threadId, pacer);
+                        }
+                    } catch (Exception e) {
+                        LOG.error("Error in producer " + threadId + ": " + e.getMessage());
+                    }
+                });
+            }
+            awaitCompletion(producerPool);
+            LOG.info("Producers finished in " + (System.nanoTime() - produceStart) / 1000000 + "ms, " +
+                    queue.backlogBytes() / 1048576 + "MB still to write");
+            queue.finish();
+            awaitCompletion(writerPool);
+            LOG.info("Spill queue drained " + (System.nanoTime() - produceStart) / 1000000 + "ms after the start");
+            return queue.ackedMessages();
+        }
+    }
+
+    /* One virtual thread per simulated device stream. Stream s owns the devices whose id modulo the
+    number of streams is s, so no two streams ever update the same twin - which is why there can't be
+    more streams than devices. With -p stream s loads its own contiguous run of ids instead. The
+    messages are split as evenly as they go, so streams differ by at most one. Virtual threads are cheap so
+    we can have a hundred thousand of them - what limits concurrency against the server is the
+    semaphore below, each stream holds a permit while it is in the strategy, and the driver
+    connection pool. Batches are always sent inline here, the virtual threads are the concurrency.
+     */
+    static long runVirtualThreads(MongoClient mongoClient, CommandLineArgs cmdArgs) {
+        int streams = cmdArgs.getVirtualStreams();
+        long totalMessages = cmdArgs.getTotalMessages();
+        int nDevices = cmdArgs.getNumberOfDevices();
+        boolean populateDb = cmdArgs.isPopulateDb();
+        Semaphore serverPermits = new Semaphore(cmdArgs.getMaxConcurrency());
+        AtomicInteger failedStreams = new AtomicInteger();
+        LongAdder processed = new LongAdder();
+
+        LOG.info("Starting " + streams + " virtual threads, each processing about " + totalMessages / streams +
+                " messages, at most " + cmdArgs.getMaxConcurrency() + " in the database at once");
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < streams; i++) {
+            final int streamId = i;
+            executor.submit(() -> {
+                MessageGenerator generator = new MessageGenerator(nDevices, cmdArgs.getChanges(),
+                        cmdArgs.getTotalAttributes());
+                // Devices this stream owns are streamId, streamId + streams, streamId + 2 * streams ...
+                int ownedDevices = (nDevices - streamId + streams - 1) / streams;
+                long first = totalMessages * streamId / streams;
+                long end = totalMessages * (streamId + 1) / streams;
+                KeyDistribution ownedKeys = KeyDistribution.parse(cmdArgs.getKeys(), ownedDevices);
+
+                WriteStrategy strategy = createStrategy(mongoClient, cmdArgs);
+                try {
+                    for (long j = first; j < end; j++) {
+                        Map<String, Object> message;
+                        if (populateDb) {
+                            message = generator.getMessage(true, (int) j);
+                        } else {
+                            message = generator.getMessage(false, streamId + ownedKeys.next(generator.realRNG) * streams);
+                        }
+
+                        serverPermits.acquire();
+                        try {
+                            strategy.ProcessMessage(message);
+                        } finally {
+                            serverPermits.release();
+                        }
+                        processed.increment();
+                    }
+                } catch (Exception e) {
+                    if (failedStreams.incrementAndGet() <= 10) {
+                        LOG.error("Error in stream " + streamId + ": " + e.getMessage());
+                    }
+                } finally {
+                    // Closing sends the last partial batch so it needs a permit too
+                    serverPermits.acquireUninterruptibly();
+                    try {
+                        strategy.close();
+                    } catch (Exception e) {
+                        LOG.error("Error closing stream " + streamId + ": " + e.getMessage());
+                    } finally {
+                        serverPermits.release();
+                    }
+                }
+            });
+        }
+
+        awaitCompletion(executor);
+        if (failedStreams.get() > 0) {
+            LOG.error(failedStreams.get() + " streams failed");
+        }
+        return processed.sum();
+    }
+
+    /* -t threads on the async driver. Each generates its messages and hands them to its own async strategy,
+    which keeps up to --async of them in the database at once, so the threads are only the CPU for
+    generating messages and the concurrency comes from the driver - see AsyncWriteStrategy. The blocking
+    client is still used to set up blob compression dictionaries.
+     */
+    static long runAsync(MongoClient mongoClient, String mongoUri, CommandLineArgs cmdArgs) {
+        int numberOfThreads = cmdArgs.getNumberOfThreads();
+        int messagesPerThread = cmdArgs.getMessagesPerThread();
+        boolean populateDb = cmdArgs.isPopulateDb();
+
+        LOG.info("Starting " + numberOfThreads + " async threads, each processing " + messagesPerThread +
+                " messages with up to " + cmdArgs.getAsyncInFlight() + " in flight");
+
+        try (com.mongodb.reactivestreams.client.MongoClient asyncClient =
+                     com.mongodb.reactivestreams.client.MongoClients.create(mongoUri)) {
+            ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+            for (int i = 0; i < numberOfThreads; i++) {
+                final int threadId = i;
+                executor.submit(() -> {
+                    MessageGenerator generator = new MessageGenerator(cmdArgs.getNumberOfDevices(),
+                            cmdArgs.getChanges(), cmdArgs.getTotalAttributes(), KeyDistribution.from(cmdArgs));
+                    try (AsyncWriteStrategy strategy = createAsyncStrategy(asyncClient, mongoClient, cmdArgs)) {
+                        for (int j = 0; j < messagesPerThread; j++) {
+                            Map<String, Object> message = populateDb ?
+                                    generator.getMessage(true, threadId * messagesPerThread + j) : generator.getMessage();
+                            strategy.ProcessMessage(message);
+                        }
+                    } catch (Exception e) {
+                        LOG.error("Error in thread " + threadId + ": " + e.getMessage());
+                    }
+                    LOG.info("Thread " + threadId + " completed");
+                });
+            }
+            awaitCompletion(executor);
+        }
+        return (long) numberOfThreads * messagesPerThread;
+    }
+
+    // Finishing well behind schedule means the target rate was more than could be sustained
+    static void logBehindSchedule(String who, Pacer pacer) {
+        long behindMs = pacer.behindNanos() / 1000000;
+        if (behindMs > 1000) {
+            LOG.warn(who + " finished " + behindMs + "ms behind schedule, the target rate was not sustained");
+        }
+    }
+
+    static void awaitCompletion(ExecutorService executor) {
         // Shutdown executor
         executor.shutdown();
 
@@ -113,20 +463,28 @@ public class MongoTwin {
             LOG.warn("Main thread was interrupted");
             executor.shutdownNow();
         }
-
-        LOG.info("All threads completed");
-        Date endTime = new Date();
-        LOG.info("Took " + (endTime.getTime() - startTime.getTime()) + "ms to process " + numberOfThreads * messagesPerThread + " messages");
     }
 
     // Factory method or simple selection
-    static WriteStrategy createStrategy(MongoClient mongoClient, String strategy) {
-        return switch (strategy) {
+    static WriteStrategy createStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        return switch (args.getStrategy()) {
+
+            case "ReadReplaceStrategy" -> new ReadReplaceStrategy(mongoClient, args);
+            case "BlobStrategy" -> new BlobStrategy(mongoClient, args);
+            case "SegmentedBlobStrategy" -> new SegmentedBlobStrategy(mongoClient, args);
+            case "ServerSideStrategy" -> new ServerSideStrategy(mongoClient, args);
+            default -> throw new IllegalStateException("Unexpected Strategy value: " + args.getStrategy());
+        };
+    }
+
+    static AsyncWriteStrategy createAsyncStrategy(com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                                  MongoClient mongoClient, CommandLineArgs args) {
+        return switch (args.getStrategy()) {
 
-            case "ReadReplaceStrategy" -> new ReadReplaceStrategy(mongoClient);
-            case "BlobStrategy" -> new BlobStrategy(mongoClient);
-            case "ServerSideStrategy" -> new ServerSideStrategy(mongoClient);
-            default -> throw new IllegalStateException("Unexpected Strategy value: " + strategy);
+            case "ReadReplaceStrategy" -> new AsyncReadReplaceStrategy(asyncClient, args);
+            case "BlobStrategy" -> new AsyncBlobStrategy(asyncClient, mongoClient, args);
+            case "ServerSideStrategy" -> new AsyncServerSideStrategy(asyncClient, args);
+            default -> throw new IllegalStateException("No async version of " + args.getStrategy());
         };
     }
 }
@@ -0,0 +1,45 @@
+package com.mongodb.examples.java.mongotwin;
+
+import java.util.concurrent.locks.LockSupport;
+
+/* Schedules messages for an open loop run.
+
+Each message has an intended send time on a fixed schedule, worked out from the start and the rate,
+never from when the previous message actually went. If a write stalls the following messages are
+already late when they are sent and we send them as fast as we can until we catch up, like a fleet of
+vehicles would - they do not wait for the server. Latency is then measured from the intended time, so
+the time messages spent queued behind the stall is counted rather than hidden (coordinated omission).
+ */
+class Pacer {
+
+    private final long intervalNanos;
+    private long next;
+
+    Pacer(double messagesPerSecond, long firstNanos) {
+        intervalNanos = Math.max(1, (long) (1e9 / messagesPerSecond));
+        next = firstNanos;
+    }
+
+    // Wait until the next message is due and return when that was, which may be in the past
+    long awaitNext() {
+        long intended = next;
+        next += intervalNanos;
+        long wait;
+        while ((wait = intended - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return intended;
+    }
+
+    // How far behind schedule we are now
+    long behindNanos() {
+        return Math.max(0, System.nanoTime() - next);
+    }
+
+    // Spread the threads' schedules out through one interval rather than all starting together
+    static Pacer forThread(double totalRate, int threads, int threadId, long startNanos) {
+        double perThread = totalRate / threads;
+        long offset = (long) (1e9 / totalRate) * threadId;
+        return new Pacer(perThread, startNanos + offset);
+    }
+}
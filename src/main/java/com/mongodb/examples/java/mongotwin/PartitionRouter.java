@@ -0,0 +1,186 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.MongoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/* Sits between the generating threads and the strategies and sends every message for a device to
+the same partition, each partition being drained by a single writer with its own strategy.
+
+That means two threads never race to update the same twin, the per writer twin cache is safe to use,
+and a batch holds more than one update for the same device.
+
+With HASH routing _id is hashed across the partitions. With CHUNK routing the partition is the
+chunk the _id falls in under the V_000 - V_999 split scheme in the README, and chunks are numbered the
+way the README moves them to shards: the chunk starting at V_c goes to shard (c + 1) % 4, except the
+MinKey chunk, which goes to shard 1, and the last one from V_999, which goes to shard 999 % 4 = 3. With a
+multiple of four partitions each writer then only ever writes to one shard.
+ */
+class PartitionRouter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionRouter.class);
+    private static final int QUEUE_CAPACITY = 10000;
+    // How long a writer waits for a message before sending what it has
+    private static final long IDLE_MS = 100;
+    // Sent down every queue once the producers are finished
+    private static final Map<String, Object> END_OF_STREAM = new HashMap<>();
+
+    enum Scheme {HASH, CHUNK}
+
+    private final int partitions;
+    private final Scheme scheme;
+    private final List<BlockingQueue<Map<String, Object>>> queues;
+
+    PartitionRouter(int partitions, Scheme scheme) {
+        this.partitions = partitions;
+        this.scheme = scheme;
+        queues = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            queues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        }
+    }
+
+    int partitionFor(String id) {
+        if (scheme == Scheme.CHUNK) {
+            return Math.floorMod(chunkShard(chunkIndex(id)), partitions);
+        }
+        int h = id.hashCode();
+        h ^= (h >>> 16); // Spread the bits, consecutive ids differ mostly in the low ones
+        return Math.floorMod(h * 0x9E3779B9, partitions);
+    }
+
+    /* Which of the README's chunks an _id of the form V_<n> falls in. The split points are the
+    strings V_000 to V_999 so this is the largest three digit prefix that sorts at or before the id,
+    -1 for the chunk from MinKey to V_000. Ids with fewer than three digits sort before the padded
+    split point with the same leading digits, so V_5 is in the V_499 chunk.
+     */
+    static int chunkIndex(String id) {
+        String digits = id.substring(2);
+        if (digits.length() >= 3) {
+            return Integer.parseInt(digits.substring(0, 3));
+        }
+        int scale = digits.length() == 1 ? 100 : 10;
+        return Integer.parseInt(digits) * scale - 1;
+    }
+
+    // Where the README script moves the chunk, modulo the number of shards
+    static int chunkShard(int chunk) {
+        if (chunk == -1) {
+            return 1;
+        }
+        if (chunk == 999) {
+            return 999;
+        }
+        return chunk + 1;
+    }
+
+    void route(Map<String, Object> message) throws InterruptedException {
+        queues.get(partitionFor((String) message.get("_id"))).put(message);
+    }
+
+    void endOfStream() throws InterruptedException {
+        for (BlockingQueue<Map<String, Object>> queue : queues) {
+            queue.put(END_OF_STREAM);
+        }
+    }
+
+    // Identity check, an empty map would be equal to END_OF_STREAM
+    private static boolean endOfStream(List<Map<String, Object>> drained) {
+        for (Map<String, Object> message : drained) {
+            if (message == END_OF_STREAM) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Producers generate and route, one writer per partition drains its queue into a strategy
+    static long run(MongoClient mongoClient, CommandLineArgs cmdArgs) {
+        int producers = cmdArgs.getNumberOfThreads();
+        int messagesPerThread = cmdArgs.getMessagesPerThread();
+        int partitions = cmdArgs.getPartitions();
+        PartitionRouter router = new PartitionRouter(partitions, Scheme.valueOf(cmdArgs.getRouting().toUpperCase()));
+
+        LOG.info("Starting " + producers + " producer threads, each generating " + messagesPerThread +
+                " messages, routed by " + router.scheme + " to " + partitions + " writers");
+
+        ExecutorService writers = Executors.newFixedThreadPool(partitions);
+        for (int p = 0; p < partitions; p++) {
+            BlockingQueue<Map<String, Object>> queue = router.queues.get(p);
+            final int partition = p;
+            writers.submit(() -> {
+                long written = 0;
+                List<Map<String, Object>> drained = new ArrayList<>(cmdArgs.getBatchSize());
+                try (WriteStrategy strategy = MongoTwin.createStrategy(mongoClient, cmdArgs)) {
+                    while (!endOfStream(drained)) {
+                        drained.clear();
+                        Map<String, Object> first = queue.poll(IDLE_MS, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            strategy.idle();
+                            continue;
+                        }
+                        drained.add(first);
+                        queue.drainTo(drained, cmdArgs.getBatchSize() - 1);
+                        for (Map<String, Object> message : drained) {
+                            if (message != END_OF_STREAM) {
+                                strategy.ProcessMessage(message);
+                                written++;
+                            }
+                        }
+                    }
+                    LOG.info("Writer " + partition + " completed, " + written + " messages");
+                } catch (Exception e) {
+                    LOG.error("Error in writer " + partition + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+                // After a failure keep taking (and dropping) messages so producers are not blocked on a full queue
+                try {
+                    while (!endOfStream(drained) && queue.take() != END_OF_STREAM) {
+                    }
+                } catch (InterruptedException e) {
+                    LOG.warn("Writer " + partition + " interrupted");
+                }
+            });
+        }
+
+        ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+        boolean populateDb = cmdArgs.isPopulateDb();
+        for (int i = 0; i < producers; i++) {
+            final int threadId = i;
+            producerPool.submit(() -> {
+                MessageGenerator generator = new MessageGenerator(cmdArgs.getNumberOfDevices(), cmdArgs.getChanges(),
+                        cmdArgs.getTotalAttributes(), KeyDistribution.from(cmdArgs));
+                try {
+                    for (int j = 0; j < messagesPerThread; j++) {
+                        if (populateDb) {
+                            router.route(generator.getMessage(true, threadId * messagesPerThread + j));
+                        } else {
+                            router.route(generator.getMessage());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    LOG.warn("Producer " + threadId + " interrupted");
+                }
+            });
+        }
+
+        MongoTwin.awaitCompletion(producerPool);
+        try {
+            router.endOfStream();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted ending the stream");
+        }
+        MongoTwin.awaitCompletion(writers);
+        return (long) producers * messagesPerThread;
+    }
+}
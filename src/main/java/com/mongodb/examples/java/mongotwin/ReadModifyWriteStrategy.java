@@ -0,0 +1,274 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+
+/* Common code for the strategies that read the twin into the client, merge the message into it
+and write the whole thing back. Subclasses only decide how a twin is stored - as a plain document
+or as something like a compressed blob.
+
+By default each message costs a find() round trip before its write is even batched. With a read
+batch size above one, messages are held until there are enough of them, all their twins are fetched
+with a single $in query, the messages are merged in memory (in arrival order, so several messages
+for the same device in one batch are applied on top of each other) and one write per device is sent.
+
+With a twin cache configured, resident twins are merged in memory without any read and the merged
+twins are left in the cache to be written back later rather than sent straight away - see TwinCache.
+ */
+abstract class ReadModifyWriteStrategy extends WriteStrategy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadModifyWriteStrategy.class);
+
+    final int readBatchSize;
+    final List<Map<String, Object>> pendingReads;
+    final TwinCache cache;
+
+    ReadModifyWriteStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        super(mongoClient, args);
+        readBatchSize = args.getReadBatchSize();
+        pendingReads = new ArrayList<>(readBatchSize);
+        if (args.getCacheSize() > 0) {
+            cache = new TwinCache(args.getCacheSize(), TwinCache.parsePolicy(args.getCachePolicy()),
+                    args.getCacheFlushMs(), entry -> sendTwin(entry.twin, entry.exists));
+        } else {
+            cache = null;
+        }
+    }
+
+    // Turn a twin (with "e" as a map) into what we store in the database
+    abstract BsonDocument encodeTwin(Document twin);
+
+    // Turn what we stored in the database back into a twin
+    abstract Document decodeTwin(Document stored);
+
+    public void WriteMessage(Map<String, Object> message) {
+        //Shortcut for bulk loading
+        if ((Boolean) message.remove("isNew")) {
+            Document twin = mergeMessage(null, message);
+            if (twin != null) {
+                SendToDatbase(new InsertOneModel<>(encodeTwin(twin)));
+            }
+            return;
+        }
+
+        if (cache != null) {
+            cache.flushIfDue();
+            TwinCache.Entry entry = cache.get(message.get("_id"));
+            if (entry != null) {
+                Document twin = mergeMessage(entry.twin, message);
+                if (twin != null) {
+                    entry.twin = twin;
+                    entry.dirty = true;
+                }
+                return;
+            }
+        }
+
+        if (readBatchSize > 1) {
+            pendingReads.add(message);
+            if (pendingReads.size() >= readBatchSize) {
+                flushPendingReads();
+            }
+            return;
+        }
+
+        // Fetch the Existing document
+        TwinEvents.TwinReadEvent event = new TwinEvents.TwinReadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        Document existingDoc = collection.find(Filters.eq("_id", message.get("_id"))).first();
+        metrics.record(WriteMetrics.Timer.FIND, System.nanoTime() - start);
+        commitReadEvent(event, 1, existingDoc == null ? 0 : 1);
+        if (existingDoc != null) {
+            existingDoc = decodeTwin(existingDoc);
+        }
+        Document twin = mergeMessage(existingDoc, message);
+        if (twin != null) {
+            writeTwin(twin, existingDoc != null);
+        }
+    }
+
+    @Override
+    BsonDocument encodeNewTwin(Map<String, Object> message) {
+        Document twin = mergeMessage(null, message);
+        return twin != null ? encodeTwin(twin) : null;
+    }
+
+    // Fetch every twin the pending messages need in one query, merge and write them back
+    void flushPendingReads() {
+        if (pendingReads.isEmpty()) {
+            return;
+        }
+        Set<Object> ids = new LinkedHashSet<>();
+        for (Map<String, Object> message : pendingReads) {
+            ids.add(message.get("_id"));
+        }
+
+        Map<Object, Document> twins = new HashMap<>();
+        TwinEvents.TwinReadEvent event = new TwinEvents.TwinReadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        for (Document stored : collection.find(Filters.in("_id", ids))) {
+            twins.put(stored.get("_id"), decodeTwin(stored));
+        }
+        metrics.record(WriteMetrics.Timer.FIND, System.nanoTime() - start);
+        commitReadEvent(event, ids.size(), twins.size());
+        Set<Object> existed = new LinkedHashSet<>(twins.keySet());
+
+        // Merge in arrival order so later messages for a device apply on top of earlier ones
+        Map<Object, Document> merged = new LinkedHashMap<>();
+        for (Map<String, Object> message : pendingReads) {
+            Object id = message.get("_id");
+            Document twin = mergeMessage(twins.get(id), message);
+            if (twin != null) {
+                twins.put(id, twin);
+                merged.put(id, twin);
+            }
+        }
+        pendingReads.clear();
+
+        // One write per device - an unordered bulk write gives no ordering between two ops on one _id
+        for (Map.Entry<Object, Document> entry : merged.entrySet()) {
+            writeTwin(entry.getValue(), existed.contains(entry.getKey()));
+        }
+        if (cache == null) {
+            flusher.flush();
+        }
+    }
+
+    private void commitReadEvent(TwinEvents.TwinReadEvent event, int requested, int found) {
+        event.strategy = metrics.strategy;
+        event.requested = requested;
+        event.found = found;
+        event.commit();
+    }
+
+    // Either write the twin now or leave it dirty in the cache to be written back later
+    void writeTwin(Document twin, boolean exists) {
+        if (cache != null) {
+            cache.put(twin.get("_id"), twin, true, exists);
+        } else {
+            sendTwin(twin, exists);
+        }
+    }
+
+    void sendTwin(Document twin, boolean exists) {
+        BsonDocument stored = encodeTwin(twin);
+        if (exists) {
+            SendToDatbase(new ReplaceOneModel<>(new Document("_id", twin.get("_id")), stored));
+        } else {
+            SendToDatbase(new InsertOneModel<>(stored));
+        }
+    }
+
+    // Returns the new state of the twin, existingDoc is null if the device is not in the database yet
+    static Document mergeMessage(Document existingDoc, Map<String, Object> message) {
+        if (existingDoc == null) {
+
+            // Transform the incoming array to a Map
+            List<?> fldList = (List<?>) message.get("e");
+            Map<String, Object> fldMap;
+            // Then create the map, casting each fld to Map<String, Object>
+            try {
+                fldMap = fldList.stream()
+                        .map(fld -> (Map<String, Object>) fld)  // Cast each item
+                        .collect(Collectors.toMap(
+                                fld -> (String) fld.get("nodeId"),  // Key mapper
+                                fld -> fld                          // Value mapper
+                        ));
+            } catch (Exception e) {
+                LOG.error("Error converting fld to map: " + e.getMessage());
+                return null;
+            }
+            Document newDoc = new Document(message);
+            newDoc.put("e", fldMap);
+            return newDoc;
+        }
+
+        Document newDoc = new Document(message);
+        // Copy over the top level fields
+        for (String topLevelField : message.keySet()) {
+            Object value = message.get(topLevelField);
+            if (value instanceof String || value instanceof Integer || value instanceof Date) {
+                newDoc.put(topLevelField, message.get(topLevelField));
+            }
+        }
+        Map<String, Object> fldMap = null;
+        try {
+            fldMap = (Map<String, Object>) existingDoc.get("e");
+        } catch (Exception e) {
+            LOG.error("Error converting fld to map: " + e.getMessage());
+        }
+        List<?> newfldList = (List<?>) message.get("e");
+
+        // Process each new fld
+        Map<String, Object> finalFldMap = fldMap;
+        newfldList.stream()
+                .map(fld -> (Map<String, Object>) fld)
+                .forEach(newfld -> {
+                    String fldid = (String) newfld.get("nodeId");
+
+                    if (fldid != null && finalFldMap.containsKey(fldid)) {
+                        Map<String, Object> existingfld = (Map<String, Object>) finalFldMap.get(fldid);
+
+                        // Compare ts values (assuming they are Long/Integer)
+                        Long newTs = (Long) newfld.get("tsCC");
+                        Long existingTs = (Long) existingfld.get("tsCC");
+
+                        if (newTs != null && existingTs != null) {
+
+                            // Replace it if the new timestamp is larger
+                            if (newTs > existingTs) {
+                                finalFldMap.put(fldid, newfld);
+                            } else {
+                                LOG.debug("Not replacing fld " + fldid + " as it has a timestamp of " + existingTs);
+                            }
+                        }
+                    }
+                });
+
+        newDoc.put("e", fldMap);
+        return newDoc;
+    }
+
+    @Override
+    void idle() {
+        flushPendingReads();
+        if (cache != null) {
+            cache.flushIfDue();
+        }
+        super.idle();
+    }
+
+    @Override
+    void drain() {
+        flushPendingReads();
+        super.drain();
+    }
+
+    @Override
+    public void close() throws Exception {
+        flushPendingReads();
+        if (cache != null) {
+            cache.flushAll();
+        }
+        super.close();
+    }
+}
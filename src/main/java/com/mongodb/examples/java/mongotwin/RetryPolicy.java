@@ -0,0 +1,135 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* What BulkFlusher does when a bulkWrite fails.
+
+Our bulk writes are unordered, so when one throws MongoBulkWriteException every op was tried and the
+exception lists the ones that failed by index - everything else was written. Only the failed ops with
+an error that goes away by itself are sent again: elections and stepdowns, chunk migrations (stale
+config), write conflicts and timeouts. Ops that fail for any other reason would fail again so they are
+counted and dropped. An exception that isn't about particular ops - the connection went, no primary
+could be found, a retryable error label - means we don't know what was written, so the whole batch is
+sent again. Twin updates set values rather than add to them so writing one twice does no harm (a
+history bucket can get a reading twice).
+
+A duplicate key depends on the op. Two upserts of the same new twin racing is retried, the second one
+is then an update. An insert that hits one has lost a race with another writer and is dropped - unless
+an earlier try failed without saying what was written, in which case it went in then.
+
+Retries wait with full jitter - a random time up to base * 2^attempt, capped at 10 seconds - so
+threads that all failed together during an election don't all come back at once. With the defaults
+of 8 retries from 100ms that is around 11 seconds, about as long as an election takes. After the last
+retry the ops are counted as failed and the run carries on.
+
+If the write concern could not be satisfied the writes were still made on the primary, so they are
+not retried, just logged.
+ */
+class RetryPolicy {
+
+    enum Outcome {WRITTEN, RETRY, FAILED}
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+    private static final long MAX_BACKOFF_MS = 10000;
+    private static final int DUPLICATE_KEY = 11000;
+    // Network, election and stepdown, stale routing, write conflict and timeouts
+    private static final Set<Integer> RETRYABLE_CODES = Set.of(6, 7, 89, 91, 189, 9001, 10107, 11600, 11602,
+            13435, 13436, 63, 150, 13388, 112, 50, 262);
+    private static final int LOGGED_ERRORS = 10;
+    private static final AtomicInteger LOGGED = new AtomicInteger();
+
+    final int maxRetries;
+    private final long baseBackoffMs;
+
+    RetryPolicy(int maxRetries, long baseBackoffMs) {
+        this.maxRetries = maxRetries;
+        this.baseBackoffMs = baseBackoffMs;
+    }
+
+    static RetryPolicy from(CommandLineArgs args) {
+        return new RetryPolicy(args.getRetries(), args.getRetryBackoffMs());
+    }
+
+    // What happened to each op in a bulkWrite that threw, rethrowing if it wasn't something retrying can fix.
+    // maybeWritten says which ops an earlier try may have written without telling us, null on the first try
+    Outcome[] classify(MongoException e, List<? extends WriteModel<?>> ops, boolean[] maybeWritten) {
+        Outcome[] outcomes = new Outcome[ops.size()];
+        if (e instanceof MongoBulkWriteException bulk) {
+            Arrays.fill(outcomes, Outcome.WRITTEN);
+            for (BulkWriteError error : bulk.getWriteErrors()) {
+                int index = error.getIndex();
+                WriteModel<?> op = ops.get(index);
+                if (error.getCode() == DUPLICATE_KEY && op instanceof InsertOneModel &&
+                        maybeWritten != null && maybeWritten[index]) {
+                    // Went in on an earlier try that failed without saying so
+                    continue;
+                }
+                if (RETRYABLE_CODES.contains(error.getCode()) || (error.getCode() == DUPLICATE_KEY && isUpsert(op))) {
+                    outcomes[index] = Outcome.RETRY;
+                } else {
+                    outcomes[index] = Outcome.FAILED;
+                    logError("Write failed and will not be retried: " + error.getMessage());
+                }
+            }
+            if (bulk.getWriteConcernError() != null) {
+                logError("Write concern not satisfied, writes were not retried: " +
+                        bulk.getWriteConcernError().getMessage());
+            }
+            return outcomes;
+        }
+        if (!isRetryable(e)) {
+            throw e;
+        }
+        Arrays.fill(outcomes, Outcome.RETRY);
+        return outcomes;
+    }
+
+    // Whether a failed bulkWrite left us not knowing which of its ops were written
+    static boolean outcomeUnknown(MongoException e) {
+        return !(e instanceof MongoBulkWriteException);
+    }
+
+    private static boolean isUpsert(WriteModel<?> op) {
+        if (op instanceof UpdateOneModel<?> update) {
+            return update.getOptions().isUpsert();
+        }
+        if (op instanceof ReplaceOneModel<?> replace) {
+            return replace.getReplaceOptions().isUpsert();
+        }
+        return false;
+    }
+
+    static boolean isRetryable(MongoException e) {
+        return e instanceof MongoSocketException || e instanceof MongoTimeoutException ||
+                e.hasErrorLabel("RetryableWriteError") || RETRYABLE_CODES.contains(e.getCode());
+    }
+
+    long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MS, baseBackoffMs << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    // The first few only, a stepdown can fail thousands of ops at once
+    static void logError(String message) {
+        int logged = LOGGED.incrementAndGet();
+        if (logged <= LOGGED_ERRORS) {
+            LOG.warn(message + (logged == LOGGED_ERRORS ? " (no more of these will be logged)" : ""));
+        }
+    }
+}
@@ -5,12 +5,16 @@ import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /* This version puts all the work on the server and does not read back the existing document.
@@ -20,55 +24,52 @@ public class ServerSideStrategy extends WriteStrategy {
 
     private static final Logger LOG = LoggerFactory.getLogger(ServerSideStrategy.class);
 
-    ServerSideStrategy(MongoClient mongoClient) {
-        super();
-        this.mongoClient = mongoClient;
-        collection = mongoClient.getDatabase("digitwin").getCollection("twins");
+    private final UpdatePipelineBuilder pipelineBuilder;
+    private final AttributeLayout layout;
+    // What each update in flight sent, recorded in the watermarks only once it has been written
+    private final Map<WriteModel<BsonDocument>, long[]> unacknowledged = new ConcurrentHashMap<>();
+
+    ServerSideStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        super(mongoClient, args);
+        layout = AttributeLayout.from(args);
+        pipelineBuilder = new UpdatePipelineBuilder(UpdatePipelineBuilder.parseShape(args.getUpdateShape()),
+                layout, args.getWatermarkMb() > 0 ? AttributeWatermarks.shared(args.getWatermarkMb()) : null);
+        if (args.getWatermarkMb() > 0) {
+            flusher.onWritten(op -> {
+                long[] sent = unacknowledged.remove(op);
+                if (sent != null) {
+                    pipelineBuilder.acknowledged(sent);
+                }
+            });
+            flusher.onDropped(unacknowledged::remove);
+        }
     }
 
     public void WriteMessage(Map<String, Object> message) {
 
         Bson query = Filters.eq("_id", message.get("_id"));
 
-        // For the top level fields we will simply set them - there is no
-        // time element - we dont xpecta  change but we can support it
-        // Copy over the top level fields
-        Map<String, Object> afterValues = new HashMap<>();
-
-        for (String topLevelField : message.keySet()) {
-            Object value = message.get(topLevelField);
-            if (value instanceof String || value instanceof Integer || value instanceof Date) {
-                afterValues.put(topLevelField, message.get(topLevelField));
-            }
-        }
-
-        //For Each value in each element in the fld array we want to conditionally set it
-
-        List<?> fldList = (List<?>) message.get("e");
-        for (Object fld : fldList) {
-            Map<String, Object> fldMap = (Map<String, Object>) fld;
-            String fldid = (String) fldMap.get("nodeId");
-            Long messageTimestamp = (Long) fldMap.get("tsCC");
-            for (String key : fldMap.keySet()) {
-                if (!key.equals(fldid)) {
-                    // So Set this field (in the server) to either the latest value or the existing value
-                    // Depending on whether the existing ts is greater or less than the new ts
-                    String path = String.format("e.%s.%s", fldid, key);
-                    String existingTimestamp = String.format("$e.%s.tsCC", fldid);
-                    Object newValue = fldMap.get(key);
-                    Document isNewer = new Document("$gt", Arrays.asList(messageTimestamp, existingTimestamp));
-                    Document conditional = new Document("$cond", Arrays.asList(isNewer, newValue, "$" + path));
-                    afterValues.put(path, conditional);
-                }
-            }
+        //For Each value in each element in the fld array we want to conditionally set it, how we
+        // express that is up to the builder
+        RawBsonDocument setStage = pipelineBuilder.buildSetStage(message);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(setStage.toJson());
         }
-        LOG.debug(new Document("$set", afterValues).toJson());
 
-        List<Document> updateSteps = new ArrayList<>();
+        List<RawBsonDocument> updateSteps = List.of(setStage);
         UpdateOptions updateOptions = new UpdateOptions().upsert(true);
-        updateSteps.add(new Document("$set", afterValues));
-        WriteModel<Document> op = new UpdateOneModel<>(query, updateSteps, updateOptions);
+        WriteModel<BsonDocument> op = new UpdateOneModel<>(query, updateSteps, updateOptions);
+        long[] sent = pipelineBuilder.sentWatermarks();
+        if (sent != null) {
+            unacknowledged.put(op, sent);
+        }
         SendToDatbase(op);
     }
-}
 
+    // What the update above leaves behind when there is no twin yet - the same as a ReadReplace twin
+    @Override
+    BsonDocument encodeNewTwin(Map<String, Object> message) {
+        Document twin = ReadModifyWriteStrategy.mergeMessage(null, message);
+        return twin != null ? TwinCodec.toRawBson(ReadReplaceStrategy.nestTwin(layout, twin)) : null;
+    }
+}
@@ -0,0 +1,432 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* A local, memory mapped queue between the threads generating messages and the ones writing them, so
+producers keep going at full speed while the cluster is slow and the writers catch up afterwards.
+
+The queue is a run of fixed size segment files, segment-<n>.spill, each mapped whole. Think of them
+as one long log: logical offset p is in segment p / segmentBytes. Each record is
+
+    int length, int segment number, the message as BSON
+
+and a record never crosses a segment - if it doesn't fit, a length of -1 ends the segment and it goes
+at the start of the next one. Producers append under one lock, copying straight into the mapped
+pages, and publish how far they have got through a volatile. Writers claim runs of records under
+another lock and decode them out of the mapped pages themselves.
+
+A writer acks a claim once everything in it has been written to MongoDB. Claims can finish out of
+order, so the committed offset is the start of the oldest claim not yet acked, and it is kept in a
+small mapped file, offsets, along with the segment size. Everything before it is done; everything after it is sent again after a
+crash, so delivery is at least once. Segments wholly before the committed offset are recycled -
+renamed to the next segment number and reused with their mapping - so a long run touches the same few
+files. Only --spill-max-mb of segments can be in use; a producer that needs another waits, which is
+where back pressure finally reaches the producers.
+
+Mapped pages survive the process dying without anything else being done. For the machine going down
+the current segment and the offsets are forced to disk every second. On restart the offsets file
+says where to start and the segments after it are scanned record by record - a record only counts if
+its length fits and its segment number matches the file it is in, which stops at a half written
+record or stale data left in a recycled segment.
+ */
+class SpillQueue implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillQueue.class);
+    private static final int HEADER_BYTES = 8;
+    private static final int END_OF_SEGMENT = -1;
+    private static final int FREE_SEGMENTS = 4;
+    private static final long SYNC_INTERVAL_MS = 1000;
+    private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Messages a writer has claimed, logical offsets start up to end
+    static class Claim {
+        final long start;
+        final long end;
+        final List<ByteBuffer> messages;
+        private boolean done;
+
+        Claim(long start, long end, List<ByteBuffer> messages) {
+            this.start = start;
+            this.end = end;
+            this.messages = messages;
+        }
+    }
+
+    private static class Segment {
+        Path file;
+        final MappedByteBuffer map;
+
+        Segment(Path file, MappedByteBuffer map) {
+            this.file = file;
+            this.map = map;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    private final Queue<Segment> freeSegments = new ConcurrentLinkedQueue<>();
+    private final MappedByteBuffer offsets;
+    private final ScheduledExecutorService scheduler;
+
+    // Producers, under appendLock
+    private final Object appendLock = new Object();
+    private long writePosition;
+    private long writeSegment = -1;
+    private MappedByteBuffer writeMap;
+    private volatile long published;
+    // writeMap for sync(), which can't take appendLock - a producer waiting for space holds it
+    private volatile MappedByteBuffer syncMap;
+
+    // Writers, under this
+    private long readPosition;
+    private long committed;
+    private final ArrayDeque<Claim> claims = new ArrayDeque<>();
+
+    private volatile boolean finished = false;
+    private volatile boolean aborted = false;
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder appendedBytes = new LongAdder();
+    private final AtomicLong acked = new AtomicLong();
+    private final LongAdder stalledNanos = new LongAdder();
+    private final long recovered;
+    private volatile long peakBacklog = 0;
+    private long lastAppended = 0;
+    private long lastAcked = 0;
+    private long lastReport = System.nanoTime();
+
+    SpillQueue(Path dir, int segmentBytes, long maxBytes, int reportIntervalSecs) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        Files.createDirectories(dir);
+        try (FileChannel channel = FileChannel.open(dir.resolve("offsets"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            offsets = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2 * Long.BYTES);
+        }
+        long previousSegmentBytes = offsets.getLong(Long.BYTES);
+        if (previousSegmentBytes != 0 && previousSegmentBytes != segmentBytes) {
+            throw new IllegalArgumentException(dir + " has " + previousSegmentBytes / 1048576 + "MB spill segments, " +
+                    "use the same --spill-segment-mb or another directory");
+        }
+        offsets.putLong(Long.BYTES, segmentBytes);
+        committed = offsets.getLong(0);
+        readPosition = committed;
+        recovered = recover();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "spill-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (reportIntervalSecs > 0) {
+            scheduler.scheduleAtFixedRate(this::report, reportIntervalSecs, reportIntervalSecs, TimeUnit.SECONDS);
+        }
+    }
+
+    // Map what is on disk and find where the last run stopped writing, returning how many messages it left
+    private long recover() throws IOException {
+        List<Long> found = new ArrayList<>();
+        try (var files = Files.list(dir)) {
+            files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.startsWith("segment-") && name.endsWith(".spill"))
+                    .forEach(name -> found.add(Long.parseLong(name.substring(8, name.length() - 6))));
+        }
+        for (long number : found) {
+            segments.put(number, map(segmentFile(number)));
+        }
+
+        long position = committed;
+        long messages = 0;
+        while (true) {
+            long number = position / segmentBytes;
+            int offset = (int) (position % segmentBytes);
+            Segment segment = segments.get(number);
+            if (segment == null) {
+                break;
+            }
+            if (segmentBytes - offset < HEADER_BYTES) {
+                position = (number + 1) * segmentBytes;
+                continue;
+            }
+            int length = segment.map.getInt(offset);
+            if (segment.map.getInt(offset + 4) != (int) number) {
+                break;
+            }
+            if (length == END_OF_SEGMENT) {
+                position = (number + 1) * segmentBytes;
+            } else if (length > 0 && offset + HEADER_BYTES + length <= segmentBytes) {
+                position += HEADER_BYTES + length;
+                messages++;
+            } else {
+                break;
+            }
+        }
+        writePosition = position;
+        published = position;
+
+        // Everything before the committed offset or after the last record is finished with. Deleted rather than
+        // recycled, a stale segment after the last record could have the name of one we are about to need.
+        long firstLive = committed / segmentBytes;
+        long lastLive = (position - 1) / segmentBytes;
+        for (long number : found) {
+            if (number < firstLive || number > lastLive || position == committed) {
+                Files.deleteIfExists(segments.remove(number).file);
+            }
+        }
+        if (messages > 0) {
+            LOG.info("Spill queue in " + dir + " has " + messages + " messages left from the last run, they will be " +
+                    "written first");
+        }
+        return messages;
+    }
+
+    private Path segmentFile(long number) {
+        return dir.resolve("segment-" + number + ".spill");
+    }
+
+    private Segment map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    // Keep a few segments to reuse, delete the rest
+    private void release(Segment segment) {
+        if (segment == null) {
+            return;
+        }
+        if (freeSegments.size() < FREE_SEGMENTS) {
+            freeSegments.offer(segment);
+        } else {
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                LOG.warn("Could not delete " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // A segment to write number into, waiting if we are already using as many as we are allowed
+    private MappedByteBuffer openSegment(long number) throws IOException {
+        long waitStart = 0;
+        while (segments.size() >= maxSegments) {
+            if (aborted) {
+                throw new IllegalStateException("Spill queue writers have stopped");
+            }
+            if (waitStart == 0) {
+                waitStart = System.nanoTime();
+            }
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        if (waitStart != 0) {
+            stalledNanos.add(System.nanoTime() - waitStart);
+        }
+        Segment segment = freeSegments.poll();
+        Path file = segmentFile(number);
+        if (segment == null) {
+            segment = map(file);
+        } else {
+            Files.move(segment.file, file);
+            segment.file = file;
+        }
+        segments.put(number, segment);
+        return segment.map;
+    }
+
+    // Add a message, BSON, blocking only if the queue has used all its space
+    void append(ByteBuffer bson) throws IOException {
+        int length = bson.remaining();
+        if (length + HEADER_BYTES > segmentBytes) {
+            throw new IllegalArgumentException("A " + length + " byte message does not fit in a spill segment");
+        }
+        synchronized (appendLock) {
+            long number = writePosition / segmentBytes;
+            int offset = (int) (writePosition % segmentBytes);
+            if (offset + HEADER_BYTES + length > segmentBytes) {
+                // Also after a restart, when the segment the last run was writing is mapped but not writeMap yet
+                Segment current = segments.get(number);
+                if (segmentBytes - offset >= HEADER_BYTES && current != null) {
+                    current.map.putInt(offset + 4, (int) number);
+                    current.map.putInt(offset, END_OF_SEGMENT);
+                }
+                number++;
+                offset = 0;
+            }
+            if (number != writeSegment) {
+                writeMap = segments.containsKey(number) ? segments.get(number).map : openSegment(number);
+                writeSegment = number;
+                syncMap = writeMap;
+            }
+            writeMap.put(offset + HEADER_BYTES, bson, bson.position(), length);
+            writeMap.putInt(offset + 4, (int) number);
+            writeMap.putInt(offset, length);
+            writePosition = number * segmentBytes + offset + HEADER_BYTES + length;
+            published = writePosition;
+        }
+        appended.increment();
+        appendedBytes.add(length);
+    }
+
+    // Up to maxMessages, waiting for some if there are none, null once the producers have finished and everything is claimed
+    Claim claim(int maxMessages) {
+        while (true) {
+            synchronized (this) {
+                long end = published;
+                if (readPosition < end) {
+                    return claimUpTo(end, maxMessages);
+                }
+                if (finished || aborted) {
+                    return null;
+                }
+            }
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    private Claim claimUpTo(long end, int maxMessages) {
+        long start = readPosition;
+        List<ByteBuffer> messages = new ArrayList<>(Math.min(maxMessages, 1024));
+        while (readPosition < end && messages.size() < maxMessages) {
+            long number = readPosition / segmentBytes;
+            int offset = (int) (readPosition % segmentBytes);
+            if (segmentBytes - offset < HEADER_BYTES) {
+                readPosition = (number + 1) * segmentBytes;
+                continue;
+            }
+            MappedByteBuffer map = segments.get(number).map;
+            int length = map.getInt(offset);
+            // Checked as recover() does, anything else means we are reading past what was written
+            if (map.getInt(offset + 4) != (int) number ||
+                    (length != END_OF_SEGMENT && (length <= 0 || offset + HEADER_BYTES + length > segmentBytes))) {
+                throw new IllegalStateException("Spill segment " + number + " has no valid record at offset " + offset);
+            }
+            if (length == END_OF_SEGMENT) {
+                readPosition = (number + 1) * segmentBytes;
+                continue;
+            }
+            messages.add(map.slice(offset + HEADER_BYTES, length).order(ByteOrder.LITTLE_ENDIAN));
+            readPosition += HEADER_BYTES + length;
+        }
+        Claim claim = new Claim(start, readPosition, messages);
+        claims.addLast(claim);
+        return claim;
+    }
+
+    // Everything in the claim has been written
+    synchronized void ack(Claim claim) {
+        claim.done = true;
+        while (!claims.isEmpty() && claims.peekFirst().done) {
+            committed = claims.pollFirst().end;
+        }
+        offsets.putLong(0, committed);
+        acked.addAndGet(claim.messages.size());
+
+        long firstLive = committed / segmentBytes;
+        for (Long number : segments.keySet()) {
+            if (number < firstLive) {
+                release(segments.remove(number));
+            }
+        }
+    }
+
+    // The producers are done, writers stop once they have claimed what is left
+    void finish() {
+        finished = true;
+    }
+
+    // The writers are gone or one has failed, stop producers waiting for space
+    void abort() {
+        aborted = true;
+    }
+
+    long backlogBytes() {
+        return published - committed;
+    }
+
+    private long backlogMessages() {
+        return recovered + appended.sum() - acked.get();
+    }
+
+    long ackedMessages() {
+        return acked.get();
+    }
+
+    private void sync() {
+        peakBacklog = Math.max(peakBacklog, backlogMessages());
+        try {
+            MappedByteBuffer current = syncMap;
+            if (current != null) {
+                current.force();
+            }
+            offsets.force();
+        } catch (RuntimeException e) {
+            LOG.warn("Could not sync the spill queue: " + e.getMessage());
+        }
+    }
+
+    // Producer and drain rates since the last report and how far behind the writers are
+    private synchronized void report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(0.001, (now - lastReport) / 1e9);
+        long nowAppended = appended.sum();
+        long nowAcked = acked.get();
+        long backlog = backlogMessages();
+        peakBacklog = Math.max(peakBacklog, backlog);
+        LOG.info(String.format("Spill queue: %.0f msgs/s in, %.0f msgs/s drained, %d messages (%.1fMB) waiting in " +
+                        "%d segments, producers stalled %dms",
+                (nowAppended - lastAppended) / seconds, (nowAcked - lastAcked) / seconds, backlog,
+                backlogBytes() / 1048576.0, segments.size(), stalledNanos.sum() / 1000000));
+        lastAppended = nowAppended;
+        lastAcked = nowAcked;
+        lastReport = now;
+    }
+
+    // If everything was written the files go, otherwise they stay for the next run to pick up
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        report();
+        LOG.info("Spill queue: " + appendedBytes.sum() / 1048576 + "MB appended, peak backlog " + peakBacklog +
+                " messages");
+        long backlog = backlogBytes();
+        if (backlog == 0) {
+            for (Segment segment : segments.values()) {
+                Files.deleteIfExists(segment.file);
+            }
+            for (Segment segment : freeSegments) {
+                Files.deleteIfExists(segment.file);
+            }
+            Files.deleteIfExists(dir.resolve("offsets"));
+        } else {
+            sync();
+            LOG.warn("Spill queue has " + backlog + " bytes not written, left in " + dir + " for the next run");
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/* Runs several strategies one after another on the same devices and the same messages and reports what
+each cost the cluster, not just how long it took.
+
+The message stream is recorded once (or taken from --replay) so every strategy sees the same input.
+For each strategy the database is dropped, the -d devices are bulk loaded, and then the stream is
+replayed through a client with a CommandListener that adds up the size of every command sent and
+reply received. Around the replay we take:
+
+    serverStatus opcounters and network counters - whatever node the URI connects to
+    the size of the oplog entries for digitwin written during the replay, from local.oplog.rs
+    the storage, data and index size of the twins after it
+
+so the differences are what the strategy did. The listener sees documents before wire compression,
+the server's network counters include it (physicalBytesIn/Out). Other clients using the cluster at
+the same time will show up in the server side numbers. Mongos has no oplog to read, and if the oplog
+wraps during a replay its bytes are left out rather than reported short.
+
+The comparison is logged as a table and written to --compare-out as JSON.
+ */
+class StrategyComparison {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StrategyComparison.class);
+    private static final String[] OPCOUNTERS = {"insert", "query", "update", "delete", "getmore", "command"};
+    private static final String[] NETWORK = {"bytesIn", "bytesOut", "physicalBytesIn", "physicalBytesOut", "numRequests"};
+    private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec();
+    private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+    // Bytes in the commands this client sends and the replies it gets back
+    static class ByteCounter implements CommandListener {
+        final LongAdder commands = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+            commands.increment();
+            bytesSent.add(bsonSize(event.getCommand()));
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+            bytesReceived.add(bsonSize(event.getResponse()));
+        }
+
+        static long bsonSize(BsonDocument document) {
+            if (document instanceof RawBsonDocument raw) {
+                return raw.getByteBuffer().remaining();
+            }
+            // The driver hands us the command with the bulk write's documents in it, encoding it again is the only way to size it
+            BasicOutputBuffer buffer = new BasicOutputBuffer();
+            try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+                BSON_DOCUMENT_CODEC.encode(writer, document, ENCODER_CONTEXT);
+            }
+            return buffer.getPosition();
+        }
+
+        Document snapshot() {
+            return new Document("commands", commands.sum()).append("bytesSent", bytesSent.sum())
+                    .append("bytesReceived", bytesReceived.sum());
+        }
+    }
+
+    static long run(MongoClient mongoClient, String mongoUri, CommandLineArgs cmdArgs) throws IOException {
+        Path stream;
+        boolean recorded = cmdArgs.getReplayFile() == null;
+        if (recorded) {
+            stream = Files.createTempFile("mongotwin", ".stream");
+            StreamFile.record(cmdArgs, stream);
+        } else {
+            stream = Path.of(cmdArgs.getReplayFile());
+        }
+
+        ByteCounter counter = new ByteCounter();
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(mongoUri))
+                .addCommandListener(counter)
+                .build();
+        List<Document> results = new ArrayList<>();
+        long processed = 0;
+        try (MongoClient measuredClient = MongoClients.create(settings)) {
+            for (String strategy : cmdArgs.getCompareStrategies()) {
+                CommandLineArgs strategyArgs = cmdArgs.withStrategy(strategy);
+                LOG.info("Comparing " + strategy + ": loading " + strategyArgs.getNumberOfDevices() + " devices");
+                mongoClient.getDatabase("digitwin").drop();
+                // Or a blob strategy would keep using a dictionary that was dropped with the rest
+                BlobDictionaries.reset();
+                BulkLoader.load(mongoClient, strategyArgs);
+
+                Document clientBefore = counter.snapshot();
+                Document serverBefore = serverStatus(mongoClient);
+                BsonTimestamp oplogStart = lastOplogEntry(mongoClient);
+                long start = System.nanoTime();
+                long messages = StreamFile.replay(measuredClient, strategyArgs, stream);
+                long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+                Document result = new Document("strategy", strategy)
+                        .append("messages", messages)
+                        .append("elapsedMs", elapsedMs)
+                        .append("messagesPerSecond", elapsedMs > 0 ? messages * 1000 / elapsedMs : 0)
+                        .append("client", difference(clientBefore, counter.snapshot()))
+                        .append("server", difference(serverBefore, serverStatus(mongoClient)))
+                        .append("oplog", oplogSince(mongoClient, oplogStart))
+                        .append("twins", storage(mongoClient.getDatabase("digitwin").getCollection("twins")));
+                LOG.info("Compared " + strategy + ": " + result.toJson());
+                results.add(result);
+                processed += messages;
+            }
+        } finally {
+            if (recorded) {
+                Files.deleteIfExists(stream);
+            }
+        }
+
+        Document report = new Document("devices", cmdArgs.getNumberOfDevices())
+                .append("messages", cmdArgs.getTotalMessages())
+                .append("attributes", cmdArgs.getTotalAttributes())
+                .append("changes", cmdArgs.getChanges())
+                .append("strategies", results);
+        Path out = Path.of(cmdArgs.getCompareFile());
+        Files.writeString(out, report.toJson(JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).indent(true)
+                .build()));
+        LOG.info("Comparison written to " + out + "\n" + formatReport(results));
+        return processed;
+    }
+
+    // opcounters and network from serverStatus, flattened
+    private static Document serverStatus(MongoClient mongoClient) {
+        Document status = mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1)
+                .append("repl", 0).append("metrics", 0).append("locks", 0));
+        Document counters = new Document();
+        Document opcounters = status.get("opcounters", new Document());
+        for (String name : OPCOUNTERS) {
+            counters.append(name, longValue(opcounters.get(name)));
+        }
+        Document network = status.get("network", new Document());
+        for (String name : NETWORK) {
+            counters.append(name, longValue(network.get(name)));
+        }
+        return counters;
+    }
+
+    private static long longValue(Object value) {
+        return value instanceof Number n ? n.longValue() : 0;
+    }
+
+    private static Document difference(Document before, Document after) {
+        Document difference = new Document();
+        for (String name : after.keySet()) {
+            difference.append(name, longValue(after.get(name)) - longValue(before.get(name)));
+        }
+        return difference;
+    }
+
+    // Where the oplog is up to, null if there isn't one we can read
+    private static BsonTimestamp lastOplogEntry(MongoClient mongoClient) {
+        try {
+            Document last = oplog(mongoClient).find().sort(Sorts.descending("$natural")).limit(1).first();
+            return last == null ? null : last.get("ts", BsonTimestamp.class);
+        } catch (MongoException e) {
+            LOG.warn("Cannot read the oplog, oplog bytes will not be reported: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Document oplogSince(MongoClient mongoClient, BsonTimestamp start) {
+        if (start == null) {
+            return null;
+        }
+        MongoCollection<Document> oplog = oplog(mongoClient);
+        Document first = oplog.find().sort(Sorts.ascending("$natural")).limit(1).first();
+        if (first != null && first.get("ts", BsonTimestamp.class).compareTo(start) > 0) {
+            LOG.warn("The oplog wrapped during the replay, use a bigger oplog or fewer messages to measure it");
+            return null;
+        }
+        Document totals = oplog.aggregate(List.of(
+                Aggregates.match(Filters.and(Filters.gt("ts", start), Filters.regex("ns", Pattern.compile("^digitwin\\.")))),
+                Aggregates.group(null, List.of(
+                        Accumulators.sum("entries", 1),
+                        Accumulators.sum("bytes", new Document("$bsonSize", "$$ROOT"))))
+        )).first();
+        return new Document("entries", totals == null ? 0 : longValue(totals.get("entries")))
+                .append("bytes", totals == null ? 0 : longValue(totals.get("bytes")));
+    }
+
+    private static MongoCollection<Document> oplog(MongoClient mongoClient) {
+        return mongoClient.getDatabase("local").getCollection("oplog.rs");
+    }
+
+    // Summed over shards
+    private static Document storage(MongoCollection<Document> collection) {
+        long count = 0;
+        long size = 0;
+        long storageSize = 0;
+        long indexSize = 0;
+        for (Document shard : collection.aggregate(List.of(new Document("$collStats",
+                new Document("storageStats", new Document()))))) {
+            Document stats = shard.get("storageStats", new Document());
+            count += longValue(stats.get("count"));
+            size += longValue(stats.get("size"));
+            storageSize += longValue(stats.get("storageSize"));
+            indexSize += longValue(stats.get("totalIndexSize"));
+        }
+        return new Document("count", count).append("size", size).append("storageSize", storageSize)
+                .append("indexSize", indexSize);
+    }
+
+    // One row per measure, one column per strategy, with bytes also per message as that is what scales to a fleet
+    static String formatReport(List<Document> results) {
+        String[][] rows = {
+                {"messages/s", "messagesPerSecond"},
+                {"client commands", "client.commands"},
+                {"client bytes sent", "client.bytesSent", "per message"},
+                {"client bytes received", "client.bytesReceived", "per message"},
+                {"server bytes in", "server.bytesIn", "per message"},
+                {"server bytes out", "server.bytesOut", "per message"},
+                {"server physical bytes in", "server.physicalBytesIn"},
+                {"server physical bytes out", "server.physicalBytesOut"},
+                {"server requests", "server.numRequests"},
+                {"opcounters insert", "server.insert"},
+                {"opcounters query", "server.query"},
+                {"opcounters update", "server.update"},
+                {"opcounters command", "server.command"},
+                {"oplog entries", "oplog.entries"},
+                {"oplog bytes", "oplog.bytes", "per message"},
+                {"twins data size", "twins.size"},
+                {"twins storage size", "twins.storageSize"},
+                {"twins index size", "twins.indexSize"},
+        };
+        StringBuilder report = new StringBuilder(String.format("%-28s", ""));
+        for (Document result : results) {
+            report.append(String.format("%22s", result.getString("strategy")));
+        }
+        report.append('\n');
+        for (String[] row : rows) {
+            report.append(String.format("%-28s", row[0]));
+            for (Document result : results) {
+                Object value = result.getEmbedded(List.of(row[1].split("\\.")), Object.class);
+                report.append(String.format("%22s", value == null ? "-" : value));
+            }
+            report.append('\n');
+            if (row.length > 2) {
+                report.append(String.format("%-28s", "  " + row[2]));
+                for (Document result : results) {
+                    Object value = result.getEmbedded(List.of(row[1].split("\\.")), Object.class);
+                    long messages = longValue(result.get("messages"));
+                    report.append(String.format("%22s", value == null || messages == 0 ? "-" :
+                            longValue(value) / messages));
+                }
+                report.append('\n');
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,201 @@
+package com.mongodb.examples.java.mongotwin;
+
+import com.mongodb.client.MongoClient;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* Record a generated message stream to a file and replay it into the strategies later.
+
+Generating messages costs CPU on the same threads that are writing, and they depend on the clock,
+so no two runs see the same input. Recording once and replaying means every strategy gets exactly
+the same messages and the run measures only the write path.
+
+The file is a 16 byte header - "MTWR", version, message count - then each message as a BSON document,
+which starts with its own length so needs no other framing. Replay memory maps the file, splits it
+between the -t threads on message boundaries and each thread decodes straight out of the mapped
+pages. A MappedByteBuffer can't be bigger than 2GB so each thread maps its range a window at a time.
+ */
+class StreamFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamFile.class);
+    private static final int MAGIC = 0x4D545752; // MTWR
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int MIN_BSON_BYTES = 5; // A length and the terminating zero of an empty document
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    // Generate the messages a normal run would and write them to the file, nothing goes to the database
+    static long record(CommandLineArgs cmdArgs) throws IOException {
+        return record(cmdArgs, Path.of(cmdArgs.getRecordFile()));
+    }
+
+    static long record(CommandLineArgs cmdArgs, Path file) throws IOException {
+        int totalMessages = cmdArgs.getTotalMessages();
+        MessageGenerator generator = new MessageGenerator(cmdArgs.getNumberOfDevices(), cmdArgs.getChanges(),
+                cmdArgs.getTotalAttributes(), KeyDistribution.from(cmdArgs));
+
+        LOG.info("Recording " + totalMessages + " messages to " + file);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file.toFile()), 1 << 20)) {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(totalMessages);
+            for (int i = 0; i < totalMessages; i++) {
+                Map<String, Object> message = cmdArgs.isPopulateDb() ? generator.getMessage(true, i)
+                        : generator.getMessage();
+                ByteBuffer bson = TwinCodec.toRawBson(message).getByteBuffer().asNIO();
+                out.write(bson.array(), bson.arrayOffset() + bson.position(), bson.remaining());
+            }
+        }
+        return totalMessages;
+    }
+
+    // Replay the file with -t threads, each with its own strategy, as fast as they can go or at --rate
+    static long replay(MongoClient mongoClient, CommandLineArgs cmdArgs) throws IOException {
+        return replay(mongoClient, cmdArgs, Path.of(cmdArgs.getReplayFile()));
+    }
+
+    static long replay(MongoClient mongoClient, CommandLineArgs cmdArgs, Path file) throws IOException {
+        int threads = cmdArgs.getNumberOfThreads();
+        List<long[]> ranges;
+        long count;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a recorded message stream");
+            }
+            count = header.getLong();
+            ranges = split(channel, threads);
+        }
+
+        if (ranges.isEmpty()) {
+            return 0;
+        }
+        LOG.info("Replaying " + count + " messages from " + file + " with " + ranges.size() + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(ranges.size());
+        long scheduleStart = System.nanoTime();
+        for (int t = 0; t < ranges.size(); t++) {
+            final int threadId = t;
+            final long[] range = ranges.get(t);
+            executor.submit(() -> {
+                try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r");
+                     WriteStrategy strategy = MongoTwin.createStrategy(mongoClient, cmdArgs)) {
+                    FileChannel channel = raf.getChannel();
+                    Pacer pacer = cmdArgs.getRate() > 0 ?
+                            Pacer.forThread(cmdArgs.getRate(), ranges.size(), threadId, scheduleStart) : null;
+                    long position = range[0];
+                    while (position < range[1]) {
+                        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                Math.min(MAP_WINDOW, range[1] - position));
+                        window.order(ByteOrder.LITTLE_ENDIAN);
+                        int consumed = replayWindow(window, position, strategy, pacer);
+                        if (consumed == 0) {
+                            throw new IOException("Message at " + position + " is bigger than the map window");
+                        }
+                        position += consumed;
+                    }
+                    if (pacer != null) {
+                        MongoTwin.logBehindSchedule("Replay thread " + threadId, pacer);
+                    }
+                    LOG.info("Replay thread " + threadId + " completed");
+                } catch (Exception e) {
+                    LOG.error("Error in replay thread " + threadId + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
+        }
+        MongoTwin.awaitCompletion(executor);
+        return count;
+    }
+
+    // Every whole message in the window, which starts at windowStart in the file, returning how many bytes that was
+    private static int replayWindow(MappedByteBuffer window, long windowStart, WriteStrategy strategy, Pacer pacer)
+            throws IOException {
+        int offset = 0;
+        while (window.limit() - offset >= 4) {
+            int length = checkLength(window.getInt(offset), windowStart + offset);
+            if (length > window.limit() - offset) {
+                break;
+            }
+            Document message = decode(window.slice(offset, length).order(ByteOrder.LITTLE_ENDIAN));
+            if (pacer != null) {
+                strategy.ProcessMessage(message, pacer.awaitNext());
+            } else {
+                strategy.ProcessMessage(message);
+            }
+            offset += length;
+        }
+        return offset;
+    }
+
+    // One message, straight out of a buffer holding exactly its BSON
+    static Document decode(ByteBuffer bson) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(bson)) {
+            return DOCUMENT_CODEC.decode(reader, DECODER_CONTEXT);
+        }
+    }
+
+    /* Walk the length prefixes to find message boundaries that split the file into roughly equal
+    ranges, one per thread. Only reads four bytes per message.
+     */
+    private static List<long[]> split(FileChannel channel, int threads) throws IOException {
+        long size = channel.size();
+        long target = Math.max(1, (size - HEADER_BYTES) / threads);
+        List<long[]> ranges = new ArrayList<>();
+        ByteBuffer lengthBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        long start = HEADER_BYTES;
+        long position = HEADER_BYTES;
+        while (position < size) {
+            lengthBytes.clear();
+            if (channel.read(lengthBytes, position) != 4) {
+                throw new IOException("Message stream is truncated at offset " + position);
+            }
+            position += checkLength(lengthBytes.getInt(0), position);
+            if (position - start >= target && ranges.size() < threads - 1) {
+                ranges.add(new long[]{start, position});
+                start = position;
+            }
+        }
+        if (position > size) {
+            throw new IOException("Message stream is truncated, the last message runs past the end of the file");
+        }
+        if (start < size) {
+            ranges.add(new long[]{start, size});
+        }
+        return ranges;
+    }
+
+    // A length prefix that can't be a BSON document means the file is corrupt, and would loop or walk backwards
+    private static int checkLength(int length, long offset) throws IOException {
+        if (length < MIN_BSON_BYTES) {
+            throw new IOException("Message stream is corrupt, message at offset " + offset + " has length " + length);
+        }
+        return length;
+    }
+}
@@ -8,20 +8,23 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class TechnicalStringGenerator {
+    // Loaded once and shared, there can be a generator per virtual thread
+    private static final String[] TECHNICAL_TERMS =
+            loadTermsFromResource("/technical-terms.txt").toArray(new String[0]);
     private final FastRCG rng = new FastRCG();
     private final String[] technicalTerms;
     int nTerms;
     StringBuilder sb = new StringBuilder();
 
     public TechnicalStringGenerator() {
-        this.technicalTerms = loadTermsFromResource("/technical-terms.txt").toArray(new String[0]);
+        this.technicalTerms = TECHNICAL_TERMS;
         nTerms = technicalTerms.length;
 
     }
 
-    private List<String> loadTermsFromResource(String resourcePath) {
+    private static List<String> loadTermsFromResource(String resourcePath) {
         List<String> terms = new ArrayList<>();
-        try (InputStream is = getClass().getResourceAsStream(resourcePath);
+        try (InputStream is = TechnicalStringGenerator.class.getResourceAsStream(resourcePath);
              BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
 
             String line;
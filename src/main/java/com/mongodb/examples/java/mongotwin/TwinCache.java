@@ -0,0 +1,126 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/* A write-behind cache of twin state for the read-modify-write strategies.
+
+When a device's twin is resident we merge into it in memory and skip the find() altogether. Merged
+twins are marked dirty and only written back when they are evicted or when the flush interval
+passes, so several updates to a hot device become a single replace. The interval is checked on every
+message, and by partition and ring writers when their queue has been empty for a while, so a writer
+with nothing to do doesn't sit on dirty twins.
+
+The cache holds at most maxEntries twins - every twin has the same -a attributes so that bounds its
+memory too, without encoding each twin to measure it - and evicts either the least recently used (LRU) or the
+oldest inserted (FIFO). It is not thread safe - each strategy instance, and so each worker thread,
+has its own - so it only gives correct results when a device is only ever updated by one worker,
+which CommandLineArgs insists on.
+Counters are shared across all caches so we can report totals at the end of a run.
+ */
+class TwinCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TwinCache.class);
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+    static final LongAdder evictions = new LongAdder();
+    static final LongAdder writeBacks = new LongAdder();
+
+    enum Policy {LRU, FIFO}
+
+    static class Entry {
+        Document twin;
+        boolean dirty;
+        boolean exists; // Whether the twin is already in the database (replace) or not (insert)
+
+        Entry(Document twin, boolean dirty, boolean exists) {
+            this.twin = twin;
+            this.dirty = dirty;
+            this.exists = exists;
+        }
+    }
+
+    private final int maxEntries;
+    private final long flushIntervalMs;
+    private final Consumer<Entry> writeBack;
+    private final LinkedHashMap<Object, Entry> entries;
+    private long lastFlush = System.currentTimeMillis();
+
+    TwinCache(int maxEntries, Policy policy, long flushIntervalMs, Consumer<Entry> writeBack) {
+        this.maxEntries = maxEntries;
+        this.flushIntervalMs = flushIntervalMs;
+        this.writeBack = writeBack;
+        this.entries = new LinkedHashMap<>(16, 0.75f, policy == Policy.LRU) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                if (size() <= TwinCache.this.maxEntries) {
+                    return false;
+                }
+                evictions.increment();
+                if (eldest.getValue().dirty) {
+                    writeBack(eldest.getValue());
+                }
+                return true;
+            }
+        };
+    }
+
+    // Returns null on a miss
+    Entry get(Object id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    void put(Object id, Document twin, boolean dirty, boolean exists) {
+        entries.put(id, new Entry(twin, dirty, exists));
+    }
+
+    // Called on every message and by idle writers, writes back all dirty twins once the flush interval has passed
+    void flushIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastFlush >= flushIntervalMs) {
+            flushAll();
+        }
+    }
+
+    void flushAll() {
+        for (Entry entry : entries.values()) {
+            if (entry.dirty) {
+                writeBack(entry);
+            }
+        }
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private void writeBack(Entry entry) {
+        writeBack.accept(entry);
+        writeBacks.increment();
+        entry.dirty = false;
+        entry.exists = true;
+    }
+
+    static Policy parsePolicy(String name) {
+        return Policy.valueOf(name.toUpperCase());
+    }
+
+    static void logStats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        long total = h + m;
+        LOG.info("Twin cache: " + h + " hits, " + m + " misses (" +
+                (total == 0 ? 0 : (100 * h / total)) + "% hit rate), " +
+                evictions.sum() + " evictions, " + writeBacks.sum() + " write backs");
+    }
+}
@@ -0,0 +1,58 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.bson.RawBsonDocument;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/* Encodes our message and twin maps straight to BSON.
+
+The driver's DocumentCodec looks up a codec in the registry for every single value it writes, which
+for a 60 attribute twin is well over a thousand lookups. Our maps only ever hold a handful of types,
+so BsonBytesWriter switches on those and writes them straight into a byte array - anything else is an
+error rather than a registry lookup. It is several times faster than a BsonBinaryWriter for a whole
+twin.
+
+Strategies wrap what they send in the RawBsonDocument from toRawBson. The driver sends a
+RawBsonDocument as the bytes it already holds, so each document is encoded exactly once, and we get
+its size for free when batching by bytes. The writers are pooled rather than per thread, as in
+BsonCompression - with virtual threads there can be a hundred thousand threads but only as many
+encodings at once as there are carriers.
+ */
+class TwinCodec {
+
+    private static final int MAX_POOLED = 256;
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+    private static final ArrayBlockingQueue<BsonBytesWriter> WRITERS = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    static RawBsonDocument toRawBson(Map<String, Object> document) {
+        BsonBytesWriter writer = WRITERS.poll();
+        if (writer == null) {
+            writer = new BsonBytesWriter();
+        }
+        try {
+            return toRawBson(writer, document);
+        } finally {
+            // offer() just returns false once the pool is full
+            if (writer.capacity() <= MAX_RETAINED_BUFFER) {
+                WRITERS.offer(writer);
+            }
+        }
+    }
+
+    private static RawBsonDocument toRawBson(BsonBytesWriter writer, Map<String, Object> document) {
+        writer.reset();
+        writer.startDocument();
+        Object id = document.get("_id");
+        if (id != null) {
+            writer.writeValue("_id", id);
+        }
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            if (!entry.getKey().equals("_id")) {
+                writer.writeValue(entry.getKey(), entry.getValue());
+            }
+        }
+        writer.endDocument();
+        return writer.toRawBsonDocument();
+    }
+}
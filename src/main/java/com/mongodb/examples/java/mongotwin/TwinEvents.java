@@ -0,0 +1,46 @@
+package com.mongodb.examples.java.mongotwin;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/* Custom JFR events so a flight recording shows our own operations next to GC, locks and IO.
+Start the run with -XX:StartFlightRecording=filename=twin.jfr and look under MongoTwin in JMC.
+When no recording is running these cost next to nothing.
+ */
+class TwinEvents {
+
+    @Name("mongotwin.Send")
+    @Label("Send To Database")
+    @Category("MongoTwin")
+    static class SendEvent extends Event {
+        @Label("Strategy")
+        String strategy;
+    }
+
+    @Name("mongotwin.TwinRead")
+    @Label("Twin Read")
+    @Category("MongoTwin")
+    static class TwinReadEvent extends Event {
+        @Label("Strategy")
+        String strategy;
+
+        @Label("Twins Requested")
+        int requested;
+
+        @Label("Twins Found")
+        int found;
+    }
+
+    @Name("mongotwin.BulkWrite")
+    @Label("Bulk Write")
+    @Category("MongoTwin")
+    static class BulkWriteEvent extends Event {
+        @Label("Operations")
+        int ops;
+
+        @Label("Background")
+        boolean background;
+    }
+}
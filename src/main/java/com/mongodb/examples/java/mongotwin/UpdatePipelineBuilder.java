@@ -0,0 +1,324 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.bson.RawBsonDocument;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Builds the $set stage ServerSideStrategy sends, in one of several shapes so we can compare them.
+
+PER_KEY is the original - one $cond for every key of every attribute, each re-evaluating the
+existing tsCC on the server:
+    { "e.X.value": { $cond: [ { $gt: [ ts, "$e.X.tsCC" ] }, 123, "$e.X.value" ] }, ... }
+
+PER_ATTRIBUTE has one $cond per attribute that swaps the whole sub-document:
+    { "e.X": { $cond: [ { $gt: [ ts, "$e.X.tsCC" ] }, { $literal: { ... } }, "$e.X" ] }, ... }
+
+MERGE binds the existing e once with $let and merges the winning sub-documents into it:
+    { e: { $let: { vars: { cur: "$e" }, in: { $mergeObjects: [ "$$cur",
+        { X: { $cond: [ { $gt: [ ts, "$$cur.X.tsCC" ] }, { $literal: { ... } }, "$$cur.X" ] } } ] } } } }
+
+The last two are much smaller to send and to evaluate, with a single $cond per attribute.
+Sub-documents are wrapped in $literal so no value is ever taken as an expression. As every message
+carries every key of an attribute, replacing the sub-document gives the same result as per key.
+
+With AttributeWatermarks, attributes no newer than the last ones the server acknowledged for the
+device are left out, and so are the stable keys when they are the same as last time. What a set stage
+sent is only recorded when the caller passes sentWatermarks() to acknowledged() once it is written - in the swap shapes that makes
+the new sub-document { $mergeObjects: [ existing, { $literal: { changing keys } } ] }.
+
+Attributes go where the AttributeLayout puts them. In a nested layout MERGE merges at every level,
+so only the branches on the way to the message's attributes are rebuilt:
+    { e: { $let: { vars: { cur: "$e" }, in: { $mergeObjects: [ "$$cur", { 3: { $mergeObjects: [ "$$cur.3",
+        { X: { $cond: [ { $gt: [ ts, "$$cur.3.X.tsCC" ] }, ... ] } } ] } } ] } } } }
+
+All the strings that only depend on the attribute - paths and $ references - are cached per nodeId
+in a template shared by every builder, so per message we only bind values. Templates are per
+attribute rather than per set of attributes as a message is a random subset of attributes and
+whole sets almost never repeat.
+ */
+class UpdatePipelineBuilder {
+
+    enum Shape {PER_KEY, PER_ATTRIBUTE, MERGE}
+
+    private static final Map<AttributeLayout, Map<String, AttributeTemplate>> TEMPLATES = new ConcurrentHashMap<>();
+    private static final Comparator<Pending> BY_BRANCH = Comparator.comparing(p -> p.template.branchKey);
+    private static final Set<String> STABLE_KEYS = Set.of(AttributeWatermarks.STABLE_KEYS);
+
+    // Everything about an attribute's place in the update that does not change between messages
+    static class AttributeTemplate {
+        final String nodeId;
+        final String path;          // e.X
+        final String ref;           // $e.X
+        final String tsRef;         // $e.X.tsCC
+        final String letRef;        // $$cur.X
+        final String letTsRef;      // $$cur.X.tsCC
+        final String[] branches;    // Where the layout nests X, empty when flat
+        final String[] letBranchRefs; // $$cur.b0, $$cur.b0.b1 ...
+        final String branchKey;     // b0.b1 ... for grouping attributes by branch
+        final long watermarkKey;    // nodeId's part of its AttributeWatermarks keys
+        final Map<String, String[]> keyPaths = new ConcurrentHashMap<>(); // key -> { e.X.key, $e.X.key }
+
+        AttributeTemplate(String nodeId, AttributeLayout layout) {
+            this.nodeId = nodeId;
+            path = layout.path(nodeId);
+            ref = "$" + path;
+            tsRef = ref + ".tsCC";
+            branches = layout.branches(nodeId);
+            letBranchRefs = new String[branches.length];
+            String letBranch = "$$cur";
+            for (int level = 0; level < branches.length; level++) {
+                letBranch = letBranch + "." + branches[level];
+                letBranchRefs[level] = letBranch;
+            }
+            branchKey = String.join(".", branches);
+            letRef = letBranch + "." + nodeId;
+            letTsRef = letRef + ".tsCC";
+            watermarkKey = AttributeWatermarks.hash64(nodeId);
+        }
+
+        String[] keyPath(String key) {
+            return keyPaths.computeIfAbsent(key, k -> new String[]{path + "." + k, ref + "." + k});
+        }
+    }
+
+    // An attribute waiting to be written into a MERGE, which has to group them by branch first
+    private static class Pending {
+        AttributeTemplate template;
+        long messageTimestamp;
+        Map<String, Object> fldMap;
+        boolean omitStable;
+    }
+
+    private final Shape shape;
+    private final AttributeLayout layout;
+    private final Map<String, AttributeTemplate> templates;
+    private final AttributeWatermarks watermarks; // null to send every attribute in full
+    private final BsonBytesWriter writer = new BsonBytesWriter();
+    private final long[] lastSent = new long[2];
+    // Key, tsCC and stable hash of each attribute in the last set stage built
+    private long[] sent = new long[0];
+    private int sentCount = 0;
+    private Pending[] pending = new Pending[0];
+
+    UpdatePipelineBuilder(Shape shape) {
+        this(shape, AttributeLayout.of("flat", 0, 0), null);
+    }
+
+    UpdatePipelineBuilder(Shape shape, AttributeLayout layout, AttributeWatermarks watermarks) {
+        this.shape = shape;
+        this.layout = layout;
+        this.templates = TEMPLATES.computeIfAbsent(layout, l -> new ConcurrentHashMap<>());
+        this.watermarks = watermarks;
+    }
+
+    static Shape parseShape(String name) {
+        return switch (name.toLowerCase()) {
+            case "perkey" -> Shape.PER_KEY;
+            case "perattribute" -> Shape.PER_ATTRIBUTE;
+            case "merge" -> Shape.MERGE;
+            default -> throw new IllegalArgumentException("Unknown update shape: " + name);
+        };
+    }
+
+    private AttributeTemplate template(String nodeId) {
+        return templates.computeIfAbsent(nodeId, n -> new AttributeTemplate(n, layout));
+    }
+
+    // What the last set stage sent, to hand to acknowledged() once it is written - null without watermarks
+    long[] sentWatermarks() {
+        return watermarks != null && sentCount > 0 ? Arrays.copyOf(sent, sentCount) : null;
+    }
+
+    // The write carrying a set stage has been acknowledged, so later ones can rely on what it sent
+    void acknowledged(long[] sentWatermarks) {
+        watermarks.putAll(sentWatermarks);
+    }
+
+    @SuppressWarnings("unchecked")
+    RawBsonDocument buildSetStage(Map<String, Object> message) {
+        writer.reset();
+        writer.startDocument();
+        writer.startDocument("$set");
+
+        // For the top level fields we will simply set them - there is no
+        // time element - we dont xpecta  change but we can support it
+        for (Map.Entry<String, Object> topLevelField : message.entrySet()) {
+            Object value = topLevelField.getValue();
+            if (value instanceof String || value instanceof Integer || value instanceof Date) {
+                writer.writeValue(topLevelField.getKey(), value);
+            }
+        }
+
+        List<?> fldList = (List<?>) message.get("e");
+        int pendingCount = 0;
+        sentCount = 0;
+        long deviceKey = watermarks != null ? AttributeWatermarks.deviceKey(message.get("_id")) : 0;
+        for (Object fld : fldList) {
+            Map<String, Object> fldMap = (Map<String, Object>) fld;
+            AttributeTemplate template = template((String) fldMap.get("nodeId"));
+            long messageTimestamp = (Long) fldMap.get("tsCC");
+            boolean omitStable = false;
+            if (watermarks != null) {
+                long key = AttributeWatermarks.key(deviceKey, template.watermarkKey);
+                long stableHash = AttributeWatermarks.stableHash(fldMap);
+                if (watermarks.get(key, lastSent)) {
+                    // The server would keep what it has anyway
+                    if (messageTimestamp <= lastSent[0]) {
+                        AttributeWatermarks.staleAttributes.increment();
+                        continue;
+                    }
+                    omitStable = stableHash == lastSent[1];
+                }
+                if (sentCount + 3 > sent.length) {
+                    sent = Arrays.copyOf(sent, Math.max(48, sent.length * 2));
+                }
+                sent[sentCount++] = key;
+                sent[sentCount++] = messageTimestamp;
+                sent[sentCount++] = stableHash;
+                AttributeWatermarks.sentAttributes.increment();
+            }
+            switch (shape) {
+                case PER_KEY -> writePerKey(writer, template, messageTimestamp, fldMap, omitStable);
+                case PER_ATTRIBUTE -> writeSwap(writer, template.path, messageTimestamp, template.tsRef,
+                        fldMap, template.ref, omitStable);
+                case MERGE -> {
+                    Pending p = pending(pendingCount++);
+                    p.template = template;
+                    p.messageTimestamp = messageTimestamp;
+                    p.fldMap = fldMap;
+                    p.omitStable = omitStable;
+                }
+            }
+        }
+        if (shape == Shape.MERGE) {
+            writer.startDocument("e");
+            writer.startDocument("$let");
+            writer.startDocument("vars");
+            writer.writeString("cur", "$e");
+            writer.endDocument();
+            writer.startDocument("in");
+            if (!layout.isFlat()) {
+                Arrays.sort(pending, 0, pendingCount, BY_BRANCH);
+            }
+            writeMergeLevel(0, pendingCount, 0, "$$cur");
+            writer.endDocument();
+            writer.endDocument();
+            writer.endDocument();
+            for (int i = 0; i < pendingCount; i++) {
+                pending[i].fldMap = null;
+            }
+        }
+
+        writer.endDocument();
+        writer.endDocument();
+        return writer.toRawBsonDocument();
+    }
+
+    private Pending pending(int i) {
+        if (i == pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(64, i * 2));
+            for (int j = i; j < pending.length; j++) {
+                pending[j] = new Pending();
+            }
+        }
+        return pending[i];
+    }
+
+    /* $mergeObjects: [ curRef, { ... } ] for pending[from, to), which all share their first level
+    branches. At the bottom that is the attributes themselves, above it a nested merge per branch. */
+    private void writeMergeLevel(int from, int to, int level, String curRef) {
+        writer.startArray("$mergeObjects");
+        writer.writeString(curRef);
+        writer.startDocument();
+        if (level == layout.depth) {
+            for (int i = from; i < to; i++) {
+                Pending p = pending[i];
+                writeSwap(writer, p.template.nodeId, p.messageTimestamp, p.template.letTsRef, p.fldMap,
+                        p.template.letRef, p.omitStable);
+            }
+        } else {
+            int i = from;
+            while (i < to) {
+                AttributeTemplate first = pending[i].template;
+                String branch = first.branches[level];
+                int j = i + 1;
+                while (j < to && pending[j].template.branches[level].equals(branch)) {
+                    j++;
+                }
+                writer.startDocument(branch);
+                writeMergeLevel(i, j, level + 1, first.letBranchRefs[level]);
+                writer.endDocument();
+                i = j;
+            }
+        }
+        writer.endDocument();
+        writer.endArray();
+    }
+
+    // { "e.X.key" : { $cond: [ { $gt: [ ts, "$e.X.tsCC" ] }, value, "$e.X.key" ] } } for every key
+    private static void writePerKey(BsonBytesWriter writer, AttributeTemplate template, long messageTimestamp,
+                                    Map<String, Object> fldMap, boolean omitStable) {
+        for (Map.Entry<String, Object> entry : fldMap.entrySet()) {
+            String key = entry.getKey();
+            if (omitStable && STABLE_KEYS.contains(key)) {
+                AttributeWatermarks.omittedKeys.increment();
+            } else if (!key.equals(template.nodeId)) {
+                String[] keyPath = template.keyPath(key);
+                writer.startDocument(keyPath[0]);
+                writeCondition(writer, messageTimestamp, template.tsRef);
+                writer.writeValue(null, entry.getValue());
+                writer.writeString(keyPath[1]);
+                writer.endArray();
+                writer.endDocument();
+            }
+        }
+    }
+
+    // { name : { $cond: [ { $gt: [ ts, tsRef ] }, { $literal: fldMap }, existingRef ] } }
+    private static void writeSwap(BsonBytesWriter writer, String name, long messageTimestamp, String tsRef,
+                                  Map<String, Object> fldMap, String existingRef, boolean omitStable) {
+        writer.startDocument(name);
+        writeCondition(writer, messageTimestamp, tsRef);
+        writer.startDocument();
+        if (omitStable) {
+            // { $mergeObjects: [ existingRef, { $literal: { the keys that change } } ] }
+            writer.startArray("$mergeObjects");
+            writer.writeString(existingRef);
+            writer.startDocument();
+            writer.startDocument("$literal");
+            for (Map.Entry<String, Object> entry : fldMap.entrySet()) {
+                if (STABLE_KEYS.contains(entry.getKey())) {
+                    AttributeWatermarks.omittedKeys.increment();
+                } else {
+                    writer.writeValue(entry.getKey(), entry.getValue());
+                }
+            }
+            writer.endDocument();
+            writer.endDocument();
+            writer.endArray();
+        } else {
+            writer.writeValue("$literal", fldMap);
+        }
+        writer.endDocument();
+        writer.writeString(existingRef);
+        writer.endArray();
+        writer.endDocument();
+    }
+
+    // Opens the $cond array and writes its first element, the caller writes the two outcomes and closes it
+    private static void writeCondition(BsonBytesWriter writer, long messageTimestamp, String tsRef) {
+        writer.startArray("$cond");
+        writer.startDocument();
+        writer.startArray("$gt");
+        writer.writeInt64(messageTimestamp);
+        writer.writeString(tsRef);
+        writer.endArray();
+        writer.endDocument();
+    }
+}
@@ -0,0 +1,176 @@
+package com.mongodb.examples.java.mongotwin;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Latency histograms and counters for one strategy, shared by every thread running it.
+
+Times are recorded in microseconds into HdrHistogram Recorders, which any number of threads can
+write to without locking. The reporter swaps out an interval histogram each time it prints and adds
+it into a running total, so we get both what is happening right now and percentiles over the whole
+run. Averages over a long run hide the tail, which is what actually hurts, so everything is
+reported as percentiles.
+
+    FIND       - each find() in the read-modify-write strategies, single or batched $in
+    BULK_WRITE - each bulkWrite, wherever it is sent from
+    MESSAGE    - WriteMessage from start to finish on the calling thread. A message that is only
+                 queued for a batched read or merged into the cache is quick here, its write shows
+                 up later in BULK_WRITE.
+    INTENDED   - open loop runs only, from when a message was scheduled to be sent until the bulkWrite
+                 with its write in it was acknowledged. Time a message spent waiting because we were
+                 behind schedule counts, which is what a real device would see.
+
+The distribution of ops per bulkWrite is kept the same way, and ops that had to be retried or were
+given up on after a failed bulkWrite are counted.
+ */
+class WriteMetrics {
+
+    enum Timer {FIND, BULK_WRITE, MESSAGE, INTENDED}
+
+    private static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final Map<String, WriteMetrics> BY_STRATEGY = new ConcurrentHashMap<>();
+
+    final String strategy;
+    private final Map<Timer, Recorder> recorders = new EnumMap<>(Timer.class);
+    private final Map<Timer, Histogram> totals = new EnumMap<>(Timer.class);
+    private final Recorder batchSizes = new Recorder(1000000, SIGNIFICANT_DIGITS);
+    private final Histogram totalBatchSizes = new Histogram(1000000, SIGNIFICANT_DIGITS);
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder ops = new LongAdder();
+    private final LongAdder retriedOps = new LongAdder();
+    private final LongAdder failedOps = new LongAdder();
+    private long lastMessages = 0;
+    private long lastOps = 0;
+    private long lastRetried = 0;
+    private long lastFailed = 0;
+
+    private WriteMetrics(String strategy) {
+        this.strategy = strategy;
+        for (Timer timer : Timer.values()) {
+            recorders.put(timer, new Recorder(MAX_MICROS, SIGNIFICANT_DIGITS));
+            totals.put(timer, new Histogram(MAX_MICROS, SIGNIFICANT_DIGITS));
+        }
+    }
+
+    static WriteMetrics forStrategy(String strategy) {
+        return BY_STRATEGY.computeIfAbsent(strategy, WriteMetrics::new);
+    }
+
+    static Collection<WriteMetrics> all() {
+        return BY_STRATEGY.values();
+    }
+
+    void record(Timer timer, long nanos) {
+        recorders.get(timer).recordValue(Math.min(MAX_MICROS, Math.max(0, nanos / 1000)));
+        if (timer == Timer.MESSAGE) {
+            messages.increment();
+        }
+    }
+
+    void recordBatch(int batchOps) {
+        batchSizes.recordValue(batchOps);
+        ops.add(batchOps);
+    }
+
+    // Ops sent again after a failed bulkWrite, and ops given up on
+    void recordRetried(int retried) {
+        retriedOps.add(retried);
+    }
+
+    void recordFailed(int failed) {
+        failedOps.add(failed);
+    }
+
+    long messageCount() {
+        return messages.sum();
+    }
+
+    // Everything since the last call, one line per timer, folded into the totals as we go
+    synchronized String intervalReport(double seconds) {
+        long nowMessages = messages.sum();
+        long nowOps = ops.sum();
+        StringBuilder report = new StringBuilder();
+        report.append(strategy).append(": ")
+                .append(String.format("%.0f msgs/s, %.0f ops/s", (nowMessages - lastMessages) / seconds,
+                        (nowOps - lastOps) / seconds));
+        lastMessages = nowMessages;
+        lastOps = nowOps;
+        long nowRetried = retriedOps.sum();
+        long nowFailed = failedOps.sum();
+        if (nowRetried > lastRetried || nowFailed > lastFailed) {
+            report.append(", ").append(nowRetried - lastRetried).append(" ops retried, ")
+                    .append(nowFailed - lastFailed).append(" failed");
+        }
+        lastRetried = nowRetried;
+        lastFailed = nowFailed;
+
+        for (Timer timer : Timer.values()) {
+            Histogram interval = recorders.get(timer).getIntervalHistogram();
+            totals.get(timer).add(interval);
+            if (interval.getTotalCount() > 0) {
+                report.append("\n    ").append(formatLatency(timer.name(), interval));
+            }
+        }
+        Histogram interval = batchSizes.getIntervalHistogram();
+        totalBatchSizes.add(interval);
+        if (interval.getTotalCount() > 0) {
+            report.append("\n    ").append(formatBatchSizes(interval));
+        }
+        return report.toString();
+    }
+
+    // Percentiles over the whole run, call intervalReport first to pick up the last interval
+    synchronized String summary() {
+        StringBuilder report = new StringBuilder(strategy).append(" whole run: ")
+                .append(messages.sum()).append(" messages, ").append(ops.sum()).append(" ops");
+        if (retriedOps.sum() > 0 || failedOps.sum() > 0) {
+            report.append(", ").append(retriedOps.sum()).append(" retried, ").append(failedOps.sum()).append(" failed");
+        }
+        for (Timer timer : Timer.values()) {
+            if (totals.get(timer).getTotalCount() > 0) {
+                report.append("\n    ").append(formatLatency(timer.name(), totals.get(timer)));
+            }
+        }
+        if (totalBatchSizes.getTotalCount() > 0) {
+            report.append("\n    ").append(formatBatchSizes(totalBatchSizes));
+        }
+        return report.toString();
+    }
+
+    // Full percentile distributions, in milliseconds, in the format the HdrHistogram plotter reads
+    synchronized void exportDistributions(PrintStream out) {
+        for (Timer timer : Timer.values()) {
+            Histogram total = totals.get(timer);
+            if (total.getTotalCount() > 0) {
+                out.println("# " + strategy + " " + timer + " latency (ms)");
+                total.outputPercentileDistribution(out, 5, 1000.0);
+                out.println();
+            }
+        }
+        if (totalBatchSizes.getTotalCount() > 0) {
+            out.println("# " + strategy + " ops per bulkWrite");
+            totalBatchSizes.outputPercentileDistribution(out, 5, 1.0);
+            out.println();
+        }
+    }
+
+    private static String formatLatency(String name, Histogram h) {
+        return String.format("%-10s n=%d p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms", name,
+                h.getTotalCount(), h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+    }
+
+    private static String formatBatchSizes(Histogram h) {
+        return String.format("%-10s n=%d min=%d p50=%d p90=%d max=%d mean=%.1f", "BATCH_OPS", h.getTotalCount(),
+                h.getMinValue(), h.getValueAtPercentile(50), h.getValueAtPercentile(90), h.getMaxValue(), h.getMean());
+    }
+}
@@ -2,45 +2,105 @@ package com.mongodb.examples.java.mongotwin;
 
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
 import org.bson.Document;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 public class WriteStrategy implements AutoCloseable {
 
-    final int BULK_SIZE = 100;
     MongoClient mongoClient;
     MongoCollection<Document> collection;
-    List<WriteModel<Document>> bulkOps = null;
-    BulkWriteOptions options;
+    // Writes go through here so the RawBsonDocuments we build are sent as they are
+    MongoCollection<BsonDocument> writeCollection;
+    BulkFlusher flusher;
+    final WriteMetrics metrics;
+    // Every reading as well as the latest, null unless history is turned on
+    final HistorySink history;
 
-    WriteStrategy() {
-        bulkOps = new ArrayList<WriteModel<Document>>();
-        options = new BulkWriteOptions().ordered(false);
+    WriteStrategy(MongoClient mongoClient, CommandLineArgs args) {
+        this.mongoClient = mongoClient;
+        collection = mongoClient.getDatabase("digitwin").getCollection("twins");
+        writeCollection = collection.withDocumentClass(BsonDocument.class);
+        metrics = WriteMetrics.forStrategy(getClass().getSimpleName());
+        flusher = new BulkFlusher(writeCollection, metrics, adaptiveBatchSize(metrics.strategy, args),
+                RetryPolicy.from(args), args.getBatchSize(), args.getBatchBytes(), args.getMaxInFlight());
+        history = args.getHistoryWindowSecs() > 0 ? new HistorySink(mongoClient, args) : null;
+        // Or at a realistic rate INTENDED would mostly be time spent waiting for a batch to fill
+        if (args.getRate() > 0) {
+            flusher.setMaxLinger(args.getMaxLingerMs());
+        }
+    }
+
+    static AdaptiveBatchSize adaptiveBatchSize(String strategy, CommandLineArgs args) {
+        if (args.getAdaptiveBatchMs() == 0) {
+            return null;
+        }
+        return AdaptiveBatchSize.forStrategy(strategy, args.getBatchSize(), args.getMaxBatchSize(),
+                args.getAdaptiveBatchMs());
+    }
+
+    // What the run loops call - WriteMessage timed end to end
+    public final void ProcessMessage(Map<String, Object> message) {
+        ProcessMessage(message, 0);
+    }
+
+    // In an open loop run, intendedNanos is the System.nanoTime() the message was scheduled for
+    public final void ProcessMessage(Map<String, Object> message, long intendedNanos) {
+        flusher.setIntendedTime(intendedNanos);
+        long start = System.nanoTime();
+        // Loading the initial twins is not history
+        if (history != null && !Boolean.TRUE.equals(message.get("isNew"))) {
+            history.record(message);
+        }
+        WriteMessage(message);
+        flusher.flushIfLingering();
+        metrics.record(WriteMetrics.Timer.MESSAGE, System.nanoTime() - start);
     }
 
     public void WriteMessage(Map<String, Object> message) {
     }
 
-    void SendToDatbase(WriteModel<Document> op) {
+    // The document a fully populated message is stored as when it is first loaded, for BulkLoader
+    BsonDocument encodeNewTwin(Map<String, Object> message) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be bulk loaded");
+    }
+
+    void SendToDatbase(WriteModel<BsonDocument> op) {
+        TwinEvents.SendEvent event = new TwinEvents.SendEvent();
+        event.begin();
+        flusher.add(op);
+        event.strategy = metrics.strategy;
+        event.commit();
+    }
+
+    // Called by writers that have been waiting for messages, so nothing sits unsent while they wait
+    void idle() {
+        flusher.flush();
+    }
 
-        bulkOps.add(op);
-        if (bulkOps.size() >= BULK_SIZE) {
+    // Writes given up on so far, compare before and after drain() to tell whether a batch of messages all went in
+    long failedOps() {
+        return flusher.failedOps();
+    }
 
-            collection.bulkWrite(bulkOps, options);
-            bulkOps.clear();
+    // Write everything handed to us so far and wait until it has been acknowledged
+    void drain() {
+        flusher.drain();
+        if (history != null) {
+            history.drain();
         }
     }
 
     @Override
     public void close() throws Exception {
-        collection = mongoClient.getDatabase("digitwin").getCollection("twins");
-        if (!bulkOps.isEmpty()) {
-            collection.bulkWrite(bulkOps, options);
+        try {
+            flusher.close();
+        } finally {
+            if (history != null) {
+                history.close();
+            }
         }
     }
 }